@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link LineIndex} lookups of {@link ProcessResultsThread} with the position search they replaced,
+ * which copied the file text for every issue and walked it character by character from the last cached line.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LineIndexBenchmark {
+    private static final int MAX_COLUMN = 40;
+
+    @Param({"5000", "50000"})
+    private int lines;
+
+    @Param({"400", "4000"})
+    private int issues;
+
+    private String text;
+    private int[] issueLines;
+    private int[] issueColumns;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append(i % 10 == 0 ? "def function_" : "    value = compute(argument_")
+                    .append(i)
+                    .append(i % 10 == 0 ? "(argument: int) -> int:\n" : ", other_argument)\n");
+        }
+        text = builder.toString();
+
+        // Mypy reports the issues of a file sorted by line
+        Random random = new Random(0);
+        issueLines = random.ints(issues, 1, lines + 1).sorted().toArray();
+        issueColumns = random.ints(issues, 0, MAX_COLUMN).toArray();
+    }
+
+    @Benchmark
+    public void lineIndex(final Blackhole blackhole) {
+        LineIndex lineIndex = LineIndex.of(text, 1);
+        for (int i = 0; i < issues; i++) {
+            blackhole.consume(lineIndex.getOffset(issueLines[i], issueColumns[i]));
+        }
+    }
+
+    @Benchmark
+    public void copyAndWalk(final Blackhole blackhole) {
+        List<Integer> lineLengthCache = new ArrayList<>();
+        lineLengthCache.add(0);
+        for (int i = 0; i < issues; i++) {
+            // the replaced code called PsiFile.textToCharArray() for every issue
+            char[] chars = text.toCharArray();
+            blackhole.consume(findPosition(lineLengthCache, issueLines[i], issueColumns[i], chars));
+        }
+    }
+
+    private static int findPosition(final List<Integer> lineLengthCache, final int line, final int column,
+                                    final char[] text) {
+        if (line <= lineLengthCache.size()) {
+            return lineLengthCache.get(line - 1) + column;
+        }
+        int offset = lineLengthCache.get(lineLengthCache.size() - 1);
+        int currentLine = lineLengthCache.size();
+        int currentColumn = 0;
+        for (int i = offset; i < text.length; ++i) {
+            final char character = text[i];
+            final char nextChar = i + 1 < text.length ? text[i + 1] : '\0';
+            if (character == '\n' || (character == '\r' && nextChar != '\n')) {
+                ++currentLine;
+                ++offset;
+                lineLengthCache.add(offset);
+                currentColumn = 0;
+            } else {
+                ++currentColumn;
+                ++offset;
+            }
+            if (line == currentLine && column == currentColumn) {
+                break;
+            }
+        }
+        return offset;
+    }
+}
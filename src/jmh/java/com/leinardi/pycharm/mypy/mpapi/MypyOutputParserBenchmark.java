@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link MypyOutputParser} with the regex based parser it replaced, on a strict-mode sized output.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MypyOutputParserBenchmark {
+    private static final String TYPE_RE = " (error|warning|note):";
+    private static final String ISSUE_RE = "([^\\s:]+):(\\d+:)?(\\d+:)?" + TYPE_RE + ".*";
+    private static final int ISSUES_PER_FILE = 20;
+
+    @Param({"200000"})
+    private int lines;
+
+    private String output;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String path = "src/package" + (i / 1000) + "/module" + (i / ISSUES_PER_FILE) + ".py";
+            switch (i % 3) {
+                case 0:
+                    builder.append(path).append(':').append(i % 500 + 1).append(':').append(i % 80 + 1)
+                            .append(": error: Argument 1 to \"f\" has incompatible type \"int\"; expected \"str\""
+                                    + "  [arg-type]\n");
+                    break;
+                case 1:
+                    builder.append(path).append(':').append(i % 500 + 1)
+                            .append(": note: Revealed type is \"builtins.dict[builtins.str, builtins.int]\"\n");
+                    break;
+                default:
+                    builder.append(path).append(':').append(i % 500 + 1).append(':').append(i % 80 + 1)
+                            .append(": error: Dict entry 0 has incompatible type \"int\": \"str\"  [dict-item]\n");
+                    break;
+            }
+        }
+        builder.append("Found ").append(lines).append(" errors in ").append(lines / ISSUES_PER_FILE)
+                .append(" files (checked 5000 source files)\n");
+        output = builder.toString();
+    }
+
+    @Benchmark
+    public void handWritten(final Blackhole blackhole) throws IOException {
+        new MypyOutputParser(new StringReader(output)).parse(blackhole::consume);
+    }
+
+    @Benchmark
+    public void regex(final Blackhole blackhole) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(new StringReader(output));
+        String rawLine;
+        Pattern typePattern = Pattern.compile(TYPE_RE);
+        while ((rawLine = bufferedReader.readLine()) != null) {
+            if (rawLine.matches(ISSUE_RE)) {
+                Matcher matcher = typePattern.matcher(rawLine);
+                if (matcher.find()) {
+                    int typeIndexStart = matcher.start();
+                    String[] splitPosition = rawLine.substring(0, typeIndexStart - 1).split(":", -1);
+                    String path = splitPosition[0].trim();
+                    int line = splitPosition.length > 1 ? Integer.parseInt(splitPosition[1].trim()) : 1;
+                    int column = splitPosition.length > 2 ? Integer.parseInt(splitPosition[2].trim()) - 1 : 1;
+                    String[] splitError = rawLine.substring(typeIndexStart).split(":", 2);
+                    SeverityLevel severityLevel = SeverityLevel.valueOf(
+                            splitError[0].trim().toUpperCase(Locale.ROOT));
+                    String message = splitError[1].trim();
+                    blackhole.consume(new Issue(path, line, column, severityLevel, message));
+                }
+            }
+        }
+    }
+}
@@ -26,8 +26,8 @@ import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
 import com.intellij.profile.codeInspection.InspectionProjectProfileManager;
 import com.intellij.psi.PsiFile;
+import com.leinardi.pycharm.mypy.checker.InspectionScan;
 import com.leinardi.pycharm.mypy.checker.Problem;
-import com.leinardi.pycharm.mypy.checker.ScanFiles;
 import com.leinardi.pycharm.mypy.checker.ScannableFile;
 import com.leinardi.pycharm.mypy.exception.MypyPluginParseException;
 import com.leinardi.pycharm.mypy.mpapi.MypyRunner;
@@ -35,7 +35,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -43,7 +42,6 @@ import java.util.Map;
 import static com.leinardi.pycharm.mypy.MypyBundle.message;
 import static com.leinardi.pycharm.mypy.util.Notifications.showException;
 import static com.leinardi.pycharm.mypy.util.Notifications.showWarning;
-import static java.util.Collections.singletonList;
 
 /**
  * Using the `ExternalAnnotator` API instead of `LocalInspectionTool`, because the former has better behavior with
@@ -81,6 +79,22 @@ public class MypyAnnotator extends ExternalAnnotator<MypyAnnotator.State, MypyAn
     private static final Results NO_PROBLEMS_FOUND = new Results(Collections.emptyList());
     private static final String ERROR_MESSAGE_INVALID_SYNTAX = "invalid syntax";
 
+    @Nullable
+    private final InspectionScan inspectionScan;
+
+    public MypyAnnotator() {
+        this(null);
+    }
+
+    /**
+     * An annotator serving the problems of the files of an "Inspect Code" run from the scan of the run.
+     *
+     * @param inspectionScan the scan of the inspection run, or null to check the files one by one.
+     */
+    MypyAnnotator(@Nullable final InspectionScan inspectionScan) {
+        this.inspectionScan = inspectionScan;
+    }
+
     private MypyPlugin plugin(final Project project) {
         final MypyPlugin mypyPlugin = project.getService(MypyPlugin.class);
         if (mypyPlugin == null) {
@@ -121,14 +135,15 @@ public class MypyAnnotator extends ExternalAnnotator<MypyAnnotator.State, MypyAn
             return NO_PROBLEMS_FOUND;
         }
 
-        final List<ScannableFile> scannableFiles = new ArrayList<>();
         try {
-            scannableFiles.addAll(ScannableFile.createAndValidate(singletonList(psiFile), plugin));
-            if (scannableFiles.isEmpty()) {
+            if (!ScannableFile.isScannable(psiFile.getVirtualFile(), project)) {
                 return NO_PROBLEMS_FOUND;
             }
-            ScanFiles scanFiles = new ScanFiles(plugin, Collections.singletonList(psiFile.getVirtualFile()));
-            Map<PsiFile, List<Problem>> map = scanFiles.call();
+            // checked in one scan with the other files of the inspection run, or with the files of the other
+            // annotators requested at the same time
+            Map<PsiFile, List<Problem>> map = inspectionScan != null
+                    ? inspectionScan.check(psiFile)
+                    : plugin.getCheckScheduler().check(psiFile);
             map.values().forEach(problems -> problems.removeIf(problem ->
                     problem.getMessage().equals(ERROR_MESSAGE_INVALID_SYNTAX)));
             if (map.isEmpty()) {
@@ -137,7 +152,7 @@ public class MypyAnnotator extends ExternalAnnotator<MypyAnnotator.State, MypyAn
 
             long duration = System.currentTimeMillis() - startTime;
             LOG.debug("Mypy scan completed: " + psiFile.getName() + " in " + duration + " ms");
-            return new Results(map.get(psiFile));
+            return new Results(map.values().iterator().next());
 
         } catch (ProcessCanceledException | AssertionError e) {
             LOG.debug("Process cancelled when scanning: " + psiFile.getName());
@@ -150,9 +165,6 @@ public class MypyAnnotator extends ExternalAnnotator<MypyAnnotator.State, MypyAn
         } catch (Throwable e) {
             handlePluginException(e, psiFile, project);
             return NO_PROBLEMS_FOUND;
-
-        } finally {
-            scannableFiles.forEach(ScannableFile::deleteIfRequired);
         }
     }
 
@@ -16,8 +16,14 @@
 
 package com.leinardi.pycharm.mypy;
 
+import com.intellij.codeInspection.GlobalInspectionContext;
+import com.intellij.codeInspection.InspectionManager;
 import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.ProblemDescriptor;
 import com.intellij.codeInspection.ex.ExternalAnnotatorBatchInspection;
+import com.intellij.codeInspection.ex.ExternalAnnotatorInspectionVisitor;
+import com.intellij.psi.PsiFile;
+import com.leinardi.pycharm.mypy.checker.InspectionScan;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -25,6 +31,9 @@ import org.jetbrains.annotations.NotNull;
  *
  * This class uses `ExternalAnnotatorBatchInspection` middleware to provides that functionality.
  *
+ * Rather than running Mypy once per inspected file, the files of an inspection run are checked together by an
+ * `InspectionScan` and served their problems from it.
+ *
  * Modeled after `com.jetbrains.python.inspections.PyPep8Inspection`
  */
 public class MypyBatchInspection extends LocalInspectionTool implements ExternalAnnotatorBatchInspection {
@@ -34,4 +43,17 @@ public class MypyBatchInspection extends LocalInspectionTool implements External
     public @NotNull String getShortName() {
         return INSPECTION_SHORT_NAME;
     }
+
+    @Override
+    public ProblemDescriptor @NotNull [] checkFile(@NotNull final PsiFile file,
+                                                  @NotNull final GlobalInspectionContext context,
+                                                  @NotNull final InspectionManager manager) {
+        final MypyPlugin plugin = file.getProject().getService(MypyPlugin.class);
+        final InspectionScan inspectionScan = plugin != null ? InspectionScan.of(context, plugin) : null;
+        if (inspectionScan == null) {
+            return ExternalAnnotatorBatchInspection.super.checkFile(file, context, manager);
+        }
+        return ExternalAnnotatorInspectionVisitor.checkFileWithExternalAnnotator(file, manager, false,
+                new MypyAnnotator(inspectionScan));
+    }
 }
@@ -21,20 +21,30 @@ import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
 import com.intellij.openapi.project.Project;
 import com.intellij.util.xmlb.XmlSerializerUtil;
+import com.intellij.util.xmlb.annotations.Transient;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 @State(name = "MypyConfigService", storages = {@Storage("mypy.xml")})
 public class MypyConfigService implements PersistentStateComponent<MypyConfigService> {
     private String customMypyPath;
     private String mypyConfigFilePath;
     private String mypyArguments;
     private boolean scanBeforeCheckin;
+    private boolean useDaemon;
+    private int scanProcesses;
+    private boolean sqliteCache;
+    private boolean fineGrainedCache;
+    private boolean useShadowFiles;
+    private final AtomicLong modificationCount = new AtomicLong();
 
     public MypyConfigService() {
         customMypyPath = "";
         mypyArguments = "";
         mypyConfigFilePath = "";
+        useShadowFiles = true;
     }
 
     public String getCustomMypyPath() {
@@ -43,6 +53,7 @@ public class MypyConfigService implements PersistentStateComponent<MypyConfigSer
 
     public void setCustomMypyPath(String pathToMypy) {
         this.customMypyPath = pathToMypy;
+        modificationCount.incrementAndGet();
     }
 
     public String getMypyConfigFilePath() {
@@ -51,6 +62,7 @@ public class MypyConfigService implements PersistentStateComponent<MypyConfigSer
 
     public void setMypyConfigFilePath(String pathToMypyrcFile) {
         this.mypyConfigFilePath = pathToMypyrcFile;
+        modificationCount.incrementAndGet();
     }
 
     public String getMypyArguments() {
@@ -59,6 +71,7 @@ public class MypyConfigService implements PersistentStateComponent<MypyConfigSer
 
     public void setMypyArguments(String mypyArguments) {
         this.mypyArguments = mypyArguments;
+        modificationCount.incrementAndGet();
     }
 
     public boolean isScanBeforeCheckin() {
@@ -67,6 +80,85 @@ public class MypyConfigService implements PersistentStateComponent<MypyConfigSer
 
     public void setScanBeforeCheckin(boolean scanBeforeCheckin) {
         this.scanBeforeCheckin = scanBeforeCheckin;
+        modificationCount.incrementAndGet();
+    }
+
+    public boolean isUseDaemon() {
+        return useDaemon;
+    }
+
+    public void setUseDaemon(boolean useDaemon) {
+        this.useDaemon = useDaemon;
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * The number of Mypy processes a scan of many files is split across, or 0 to use one per CPU core.
+     *
+     * @return the configured number of processes.
+     */
+    public int getScanProcesses() {
+        return scanProcesses;
+    }
+
+    public void setScanProcesses(int scanProcesses) {
+        this.scanProcesses = scanProcesses;
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Should Mypy store its cache in a SQLite database ({@code --sqlite-cache}) rather than in many small files?
+     *
+     * @return true to pass {@code --sqlite-cache}.
+     */
+    public boolean isSqliteCache() {
+        return sqliteCache;
+    }
+
+    public void setSqliteCache(boolean sqliteCache) {
+        this.sqliteCache = sqliteCache;
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Should Mypy include the fine-grained dependencies in its cache ({@code --cache-fine-grained}), which the
+     * daemon needs to start from the cache?
+     *
+     * @return true to pass {@code --cache-fine-grained}.
+     */
+    public boolean isFineGrainedCache() {
+        return fineGrainedCache;
+    }
+
+    public void setFineGrainedCache(boolean fineGrainedCache) {
+        this.fineGrainedCache = fineGrainedCache;
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Should the unsaved files be checked under their own path, reading their content from a snapshot
+     * ({@code --shadow-file}), rather than as a copy in a temporary directory? Not supported by the daemon.
+     *
+     * @return true to pass the unsaved files as shadow files.
+     */
+    public boolean isUseShadowFiles() {
+        return useShadowFiles;
+    }
+
+    public void setUseShadowFiles(boolean useShadowFiles) {
+        this.useShadowFiles = useShadowFiles;
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Incremented by every settings change, so that values derived from the settings can be cached per
+     * configuration generation.
+     *
+     * @return the current configuration generation.
+     */
+    @Transient
+    public long getModificationCount() {
+        return modificationCount.get();
     }
 
     @Nullable
@@ -78,6 +170,7 @@ public class MypyConfigService implements PersistentStateComponent<MypyConfigSer
     @Override
     public void loadState(@NotNull MypyConfigService config) {
         XmlSerializerUtil.copyBean(config, this);
+        modificationCount.incrementAndGet();
     }
 
     @Nullable
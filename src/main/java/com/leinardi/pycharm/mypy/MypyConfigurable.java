@@ -31,6 +31,7 @@ import javax.swing.JComponent;
 public class MypyConfigurable implements Configurable {
     private static final Logger LOG = Logger.getInstance(MypyConfigurable.class);
 
+    private final Project project;
     private final MypyConfigPanel configPanel;
     private final MypyConfigService mypyConfigService;
 
@@ -40,6 +41,7 @@ public class MypyConfigurable implements Configurable {
 
     MypyConfigurable(@NotNull final Project project,
                      @NotNull final MypyConfigPanel configPanel) {
+        this.project = project;
         this.configPanel = configPanel;
         mypyConfigService = MypyConfigService.getInstance(project);
     }
@@ -68,7 +70,12 @@ public class MypyConfigurable implements Configurable {
     public boolean isModified() {
         boolean result = !configPanel.getMypyPath().equals(mypyConfigService.getCustomMypyPath())
                 || !configPanel.getMypyConfigFilePath().equals(mypyConfigService.getMypyConfigFilePath())
-                || !configPanel.getMypyArguments().equals(mypyConfigService.getMypyArguments());
+                || !configPanel.getMypyArguments().equals(mypyConfigService.getMypyArguments())
+                || configPanel.isUseDaemon() != mypyConfigService.isUseDaemon()
+                || configPanel.getScanProcesses() != mypyConfigService.getScanProcesses()
+                || configPanel.isSqliteCache() != mypyConfigService.isSqliteCache()
+                || configPanel.isFineGrainedCache() != mypyConfigService.isFineGrainedCache()
+                || configPanel.isUseShadowFiles() != mypyConfigService.isUseShadowFiles();
         if (LOG.isDebugEnabled()) {
             LOG.debug("Has config changed? " + result);
         }
@@ -80,6 +87,16 @@ public class MypyConfigurable implements Configurable {
         mypyConfigService.setCustomMypyPath(configPanel.getMypyPath());
         mypyConfigService.setMypyConfigFilePath(configPanel.getMypyConfigFilePath());
         mypyConfigService.setMypyArguments(configPanel.getMypyArguments());
+        mypyConfigService.setScanProcesses(configPanel.getScanProcesses());
+        mypyConfigService.setSqliteCache(configPanel.isSqliteCache());
+        mypyConfigService.setFineGrainedCache(configPanel.isFineGrainedCache());
+        mypyConfigService.setUseShadowFiles(configPanel.isUseShadowFiles());
+        if (configPanel.isUseDaemon() != mypyConfigService.isUseDaemon()) {
+            mypyConfigService.setUseDaemon(configPanel.isUseDaemon());
+            if (!configPanel.isUseDaemon()) {
+                project.getService(MypyPlugin.class).getDaemon().stop();
+            }
+        }
     }
 
     @Override
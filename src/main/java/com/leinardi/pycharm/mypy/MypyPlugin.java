@@ -16,51 +16,80 @@
 
 package com.leinardi.pycharm.mypy;
 
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
+import com.leinardi.pycharm.mypy.checker.CheckScheduler;
 import com.leinardi.pycharm.mypy.checker.Problem;
 import com.leinardi.pycharm.mypy.checker.ScanFiles;
 import com.leinardi.pycharm.mypy.checker.ScannerListener;
+import com.leinardi.pycharm.mypy.checker.SnapshotStore;
 import com.leinardi.pycharm.mypy.checker.UiFeedbackScannerListener;
 import com.leinardi.pycharm.mypy.exception.MypyPluginException;
+import com.leinardi.pycharm.mypy.mpapi.MypyCacheDirectories;
+import com.leinardi.pycharm.mypy.mpapi.MypyDaemon;
+import com.leinardi.pycharm.mypy.mpapi.MypyProbeCache;
 import com.leinardi.pycharm.mypy.util.Async;
+import com.leinardi.pycharm.mypy.util.Hashes;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static com.leinardi.pycharm.mypy.util.Async.whenFinished;
+import static com.leinardi.pycharm.mypy.util.Async.NO_TIMEOUT;
+import static com.leinardi.pycharm.mypy.util.Async.await;
 
 /**
  * Main class for the Mypy scanning plug-in.
  */
 @Service
-public final class MypyPlugin {
+public final class MypyPlugin implements Disposable {
 
     private static final Logger LOG = com.intellij.openapi.diagnostic.Logger.getInstance(MypyPlugin.class);
 
-    private static final long NO_TIMEOUT = 0L;
-
-    private final Set<Future<?>> checksInProgress = new HashSet<>();
+    private final Set<CompletableFuture<?>> checksInProgress = new HashSet<>();
+    private final Map<String, ScanFlight> scansInFlight = new HashMap<>();
+    private final AtomicLong startedScanCount = new AtomicLong();
+    private final AtomicLong joinedScanCount = new AtomicLong();
     private final Project project;
+    private final MypyDaemon daemon;
+    private final MypyProbeCache probeCache;
+    private final MypyResultCache resultCache;
+    private final SnapshotStore snapshotStore;
+    private final CheckScheduler checkScheduler;
 
     /**
      * Construct a plug-in instance for the given project.
      *
      * @param project the current project.
      */
+    @SuppressWarnings("FutureReturnValueIgnored")
     public MypyPlugin(@NotNull final Project project) {
         this.project = project;
+        this.daemon = new MypyDaemon(project);
+        this.probeCache = new MypyProbeCache(project, this);
+        this.resultCache = new MypyResultCache(project, this);
+        this.snapshotStore = new SnapshotStore(project, this);
+        this.checkScheduler = new CheckScheduler(this);
+        ApplicationManager.getApplication().executeOnPooledThread(MypyCacheDirectories::evict);
 
         LOG.info("Mypy Plugin loaded with project base dir: \"" + getProjectPath() + "\"");
 
@@ -70,6 +99,57 @@ public final class MypyPlugin {
         return project;
     }
 
+    /**
+     * The project's mypy daemon. The server itself is only started by the first daemon check.
+     *
+     * @return the daemon of this project.
+     */
+    public MypyDaemon getDaemon() {
+        return daemon;
+    }
+
+    /**
+     * The cached result of the Mypy availability check, shared by every scan of the project.
+     *
+     * @return the probe cache of this project.
+     */
+    public MypyProbeCache getProbeCache() {
+        return probeCache;
+    }
+
+    /**
+     * The issues of the files checked since the last change to the project's Python files.
+     *
+     * @return the result cache of this project.
+     */
+    public MypyResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * The snapshots of the unsaved files, reused from one check to the next.
+     *
+     * @return the snapshot store of this project.
+     */
+    public SnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+
+    /**
+     * The scheduler merging the checks of single files requested at the same time.
+     *
+     * @return the check scheduler of this project.
+     */
+    public CheckScheduler getCheckScheduler() {
+        return checkScheduler;
+    }
+
+    @Override
+    public void dispose() {
+        stopChecks();
+        daemon.stop();
+    }
+
     @Nullable
     private File getProjectPath() {
         final VirtualFile baseDir = ProjectUtil.guessProjectDir(project);
@@ -97,29 +177,33 @@ public final class MypyPlugin {
         LOG.warn(action + " failed", e);
     }
 
-    private <T> Future<T> checkInProgress(final Future<T> checkFuture) {
+    /**
+     * Track a check started by the user until it completes, so that it can be stopped.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private <T> CompletableFuture<T> checkInProgress(final CompletableFuture<T> checkFuture) {
         synchronized (checksInProgress) {
             if (!checkFuture.isDone()) {
                 checksInProgress.add(checkFuture);
             }
         }
+        checkFuture.whenComplete((result, error) -> checkComplete(checkFuture));
         return checkFuture;
     }
 
     public void stopChecks() {
+        final List<CompletableFuture<?>> checksToStop;
         synchronized (checksInProgress) {
-            checksInProgress.forEach(task -> task.cancel(true));
+            checksToStop = new ArrayList<>(checksInProgress);
             checksInProgress.clear();
         }
+        // outside of the lock: the completion of a cancelled check is tracked right away
+        checksToStop.forEach(check -> check.cancel(true));
     }
 
-    public <T> void checkComplete(final Future<T> task) {
-        if (task == null) {
-            return;
-        }
-
+    private void checkComplete(final CompletableFuture<?> check) {
         synchronized (checksInProgress) {
-            checksInProgress.remove(task);
+            checksInProgress.remove(check);
         }
     }
 
@@ -132,9 +216,7 @@ public final class MypyPlugin {
             return;
         }
 
-        final ScanFiles checkFiles = new ScanFiles(this, files);
-        checkFiles.addListener(new UiFeedbackScannerListener(this));
-        runAsyncCheck(checkFiles);
+        runAsyncCheck(new ScanFiles(this, files), new UiFeedbackScannerListener(this));
     }
 
     public Map<PsiFile, List<Problem>> scanFiles(@NotNull final List<VirtualFile> files) {
@@ -143,30 +225,208 @@ public final class MypyPlugin {
         }
 
         try {
-            return whenFinished(runAsyncCheck(new ScanFiles(this, files)), NO_TIMEOUT).get();
+            return await(runAsyncCheck(new ScanFiles(this, files), null), NO_TIMEOUT);
         } catch (final Throwable e) {
             LOG.warn("ERROR scanning files", e);
             return Collections.emptyMap();
         }
     }
 
-    private Future<Map<PsiFile, List<Problem>>> runAsyncCheck(final ScanFiles checker) {
-        final Future<Map<PsiFile, List<Problem>>> checkFilesFuture =
-                checkInProgress(Async.executeOnPooledThread(checker));
-        checker.addListener(new ScanCompletionTracker(checkFilesFuture));
-        return checkFilesFuture;
+    private CompletableFuture<Map<PsiFile, List<Problem>>> runAsyncCheck(final ScanFiles checker,
+                                                                         @Nullable final ScannerListener listener) {
+        return checkInProgress(runScan(checker, listener));
     }
 
-    private class ScanCompletionTracker implements ScannerListener {
+    /**
+     * Run a scan on a pooled thread. If a scan of the same files, with the same content and settings, is already in
+     * progress, it is joined instead: no other Mypy process is started. The files are compared on the pooled thread
+     * too, never on the calling thread.
+     *
+     * @param scanFiles the scan.
+     * @param listener  a listener of the scan, or null. The listener of a joined scan is told when it starts and
+     *                  completes, but not of its partial results.
+     * @return the results of the scan. Cancelling them leaves the scan, which is cancelled once left by all its
+     *         callers.
+     */
+    public CompletableFuture<Map<PsiFile, List<Problem>>> runScan(@NotNull final ScanFiles scanFiles,
+                                                                  @Nullable final ScannerListener listener) {
+        return runScan(scanFiles, listener, scanFiles::call);
+    }
 
-        private final Future<Map<PsiFile, List<Problem>>> future;
+    /**
+     * Run a scan as {@link #runScan(ScanFiles, ScannerListener)} does, with the given task if it is not joined.
+     *
+     * @param scanFiles the scan, which gives the key of the scans to join.
+     * @param listener  a listener of the scan, or null.
+     * @param scan      the task of the scan, interrupted when the scan is cancelled.
+     * @return the results of the scan.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    CompletableFuture<Map<PsiFile, List<Problem>>> runScan(@NotNull final ScanFiles scanFiles,
+                                                           @Nullable final ScannerListener listener,
+                                                           @NotNull final Callable<Map<PsiFile, List<Problem>>> scan) {
+        final CompletableFuture<Map<PsiFile, List<Problem>>> callerResult = new CompletableFuture<>();
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            try {
+                joinOrStart(scanFiles, listener, scan, callerResult);
+            } catch (Throwable e) {
+                callerResult.completeExceptionally(e);
+            }
+        });
+        return callerResult;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void joinOrStart(final ScanFiles scanFiles, @Nullable final ScannerListener listener,
+                             final Callable<Map<PsiFile, List<Problem>>> scan,
+                             final CompletableFuture<Map<PsiFile, List<Problem>>> callerResult) {
+        if (callerResult.isDone()) {
+            // cancelled before it started
+            return;
+        }
+        final String key = flightKeyOf(scanFiles);
+        final ScanFlight flight;
+        final boolean joined;
+        synchronized (scansInFlight) {
+            final ScanFlight scanInFlight = scansInFlight.get(key);
+            joined = scanInFlight != null;
+            if (joined) {
+                flight = scanInFlight;
+                if (listener != null) {
+                    flight.joinedListeners.add(listener);
+                }
+            } else {
+                flight = new ScanFlight(key, scanFiles, scan);
+                scansInFlight.put(key, flight);
+            }
+            flight.callers++;
+        }
+
+        if (joined) {
+            joinedScanCount.incrementAndGet();
+            if (listener != null) {
+                listener.scanStarting(flight.scanFiles.getFiles());
+            }
+            logScanStatistics("Joined the scan in progress of " + flight.scanFiles.getFiles().size() + " files");
+        } else {
+            startedScanCount.incrementAndGet();
+            if (listener != null) {
+                scanFiles.addListener(listener);
+            }
+            flight.start();
+        }
+
+        flight.result.whenComplete((results, error) -> {
+            if (error != null) {
+                callerResult.completeExceptionally(error);
+            } else {
+                callerResult.complete(results);
+            }
+        });
+        // run at once if the caller cancelled while the scan was being joined
+        callerResult.whenComplete((results, error) -> {
+            if (callerResult.isCancelled()) {
+                leave(flight);
+            }
+        });
+    }
+
+    private void leave(final ScanFlight flight) {
+        synchronized (scansInFlight) {
+            flight.callers--;
+            if (flight.callers > 0 || flight.result.isDone()) {
+                return;
+            }
+            scansInFlight.remove(flight.key, flight);
+        }
+        LOG.debug("Cancelling the scan of " + flight.scanFiles.getFiles().size() + " files, left by all its callers");
+        flight.cancel();
+    }
+
+    private void logScanStatistics(final String event) {
+        // only logged when a Mypy run is saved, which is rare enough for the idea.log
+        LOG.info(event + ": " + startedScanCount.get() + " scans started, " + joinedScanCount.get()
+                + " Mypy runs saved by joining a scan in progress");
+    }
+
+    /**
+     * The key of the scans which would give the same results: the same files, content and settings.
+     */
+    private String flightKeyOf(final ScanFiles scanFiles) {
+        return ReadAction.compute(() -> {
+            final List<String> parts = new ArrayList<>();
+            for (VirtualFile virtualFile : scanFiles.getFiles()) {
+                final Document document = FileDocumentManager.getInstance().getCachedDocument(virtualFile);
+                final long stamp = document != null
+                        ? document.getModificationStamp()
+                        : virtualFile.getModificationStamp();
+                parts.add(virtualFile.getPath() + ':' + stamp);
+            }
+            Collections.sort(parts);
+            parts.add(Long.toString(MypyConfigService.getInstance(project).getModificationCount()));
+            return Hashes.hash(parts.toArray(new String[0]));
+        });
+    }
 
-        ScanCompletionTracker(final Future<Map<PsiFile, List<Problem>>> future) {
-            this.future = future;
+    /**
+     * A scan in progress, shared by the callers requesting it.
+     */
+    private final class ScanFlight implements ScannerListener {
+        private final String key;
+        private final ScanFiles scanFiles;
+        private final Callable<Map<PsiFile, List<Problem>>> scan;
+        private final CompletableFuture<Map<PsiFile, List<Problem>>> result = new CompletableFuture<>();
+        private final List<ScannerListener> joinedListeners = new ArrayList<>();
+        private int callers;
+        private volatile CompletableFuture<Map<PsiFile, List<Problem>>> task;
+        private volatile MypyPluginException error;
+
+        ScanFlight(final String key, final ScanFiles scanFiles, final Callable<Map<PsiFile, List<Problem>>> scan) {
+            this.key = key;
+            this.scanFiles = scanFiles;
+            this.scan = scan;
+            scanFiles.addListener(this);
+        }
+
+        @SuppressWarnings("FutureReturnValueIgnored")
+        void start() {
+            final CompletableFuture<Map<PsiFile, List<Problem>>> scanTask =
+                    Async.executeOnPooledThread(scan);
+            task = scanTask;
+            scanTask.whenComplete(this::complete);
+        }
+
+        void cancel() {
+            final CompletableFuture<Map<PsiFile, List<Problem>>> scanTask = task;
+            if (scanTask != null) {
+                scanTask.cancel(true);
+            }
+            result.cancel(false);
+        }
+
+        private void complete(final Map<PsiFile, List<Problem>> results, final Throwable failure) {
+            final List<ScannerListener> listeners;
+            synchronized (scansInFlight) {
+                scansInFlight.remove(key, this);
+                listeners = new ArrayList<>(joinedListeners);
+            }
+            if (failure != null) {
+                // cancelled
+                result.completeExceptionally(failure);
+                return;
+            }
+            for (ScannerListener listener : listeners) {
+                if (error != null) {
+                    listener.scanFailedWithError(error);
+                } else {
+                    listener.scanCompletedSuccessfully(results);
+                }
+            }
+            result.complete(results);
         }
 
         @Override
-        public void scanStarting(final List<PsiFile> filesToScan) {
+        public void scanStarting(final List<VirtualFile> filesToScan) {
         }
 
         @Override
@@ -174,14 +434,16 @@ public final class MypyPlugin {
         }
 
         @Override
-        public void scanCompletedSuccessfully(
-                final Map<PsiFile, List<Problem>> scanResults) {
-            checkComplete(future);
+        public void problemsFound(final Map<PsiFile, List<Problem>> problems) {
+        }
+
+        @Override
+        public void scanCompletedSuccessfully(final Map<PsiFile, List<Problem>> scanResults) {
         }
 
         @Override
-        public void scanFailedWithError(final MypyPluginException error) {
-            checkComplete(future);
+        public void scanFailedWithError(final MypyPluginException scanError) {
+            error = scanError;
         }
     }
 }
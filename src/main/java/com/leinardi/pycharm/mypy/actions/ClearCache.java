@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.actions;
+
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.text.StringUtil;
+import com.leinardi.pycharm.mypy.MypyBundle;
+import com.leinardi.pycharm.mypy.MypyPlugin;
+import com.leinardi.pycharm.mypy.mpapi.MypyCacheDirectories;
+import com.leinardi.pycharm.mypy.util.Notifications;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Action to delete the Mypy cache directories of the project.
+ */
+public class ClearCache extends BaseAction {
+
+    @Override
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void actionPerformed(final @NotNull AnActionEvent event) {
+        project(event).ifPresent(project -> {
+            final MypyPlugin mypyPlugin = project.getService(MypyPlugin.class);
+            if (mypyPlugin == null) {
+                throw new IllegalStateException("Couldn't get mypy plugin");
+            }
+            // nothing may write to the cache while it is deleted
+            mypyPlugin.stopChecks();
+            mypyPlugin.getDaemon().stop();
+            mypyPlugin.getResultCache().invalidate();
+            ApplicationManager.getApplication().executeOnPooledThread(() -> {
+                long freed = MypyCacheDirectories.clear(project);
+                Notifications.showInfo(project,
+                        MypyBundle.message("action.clear-cache.done", StringUtil.formatFileSize(freed)));
+            });
+        });
+    }
+
+}
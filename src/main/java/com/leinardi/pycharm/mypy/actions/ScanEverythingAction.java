@@ -17,7 +17,7 @@
 package com.leinardi.pycharm.mypy.actions;
 
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.ThrowableRunnable;
 import com.leinardi.pycharm.mypy.MypyPlugin;
@@ -36,10 +36,9 @@ class ScanEverythingAction implements ThrowableRunnable<RuntimeException> {
 
     @Override
     public void run() {
-        List<VirtualFile> filesToScan;
         // all non-excluded files of the project
-        filesToScan = VfUtil.flattenFiles(new VirtualFile[]{ProjectUtil.guessProjectDir(project)});
-        filesToScan = VfUtil.filterOnlyPythonProjectFiles(project, filesToScan);
+        List<VirtualFile> filesToScan = VfUtil.collectPythonFiles(project,
+                ProjectRootManager.getInstance(project).getContentRoots());
 
         project.getService(MypyPlugin.class).asyncScanFiles(filesToScan);
     }
@@ -31,11 +31,8 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.util.ThrowableRunnable;
 import com.leinardi.pycharm.mypy.MypyPlugin;
-import com.leinardi.pycharm.mypy.util.VfUtil;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.List;
-
 import static com.leinardi.pycharm.mypy.actions.ToolWindowAccess.toolWindow;
 
 /**
@@ -65,10 +62,8 @@ public class ScanModule extends BaseAction {
                     try {
                         setProgressText(toolWindow, "plugin.status.in-progress.module");
 
-                        List<VirtualFile> moduleFiles = VfUtil.filterOnlyPythonProjectFiles(
-                                project, VfUtil.flattenFiles(new VirtualFile[]{selectedFiles[0].getParent()}));
                         ThrowableRunnable<RuntimeException> scanAction = new ScanSourceRootsAction(project,
-                                moduleFiles.toArray(new VirtualFile[0]));
+                                new VirtualFile[]{selectedFiles[0].getParent()});
                         ReadAction.run(scanAction);
                     } catch (Throwable e) {
                         MypyPlugin.processErrorAndLog("Current Module scan", e);
@@ -36,8 +36,7 @@ class ScanSourceRootsAction implements ThrowableRunnable<RuntimeException> {
     @Override
     public void run() {
         project.getService(MypyPlugin.class)
-                .asyncScanFiles(VfUtil.filterOnlyPythonProjectFiles(project,
-                        VfUtil.flattenFiles(sourceRoots)));
+                .asyncScanFiles(VfUtil.collectPythonFiles(project, sourceRoots));
     }
 
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.leinardi.pycharm.mypy.MypyPlugin;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Project-level scheduler merging the checks of single files requested at about the same time (e.g. by the
+ * annotators of several editors) into one Mypy scan.
+ * <p>
+ * The first request opens a batch, which starts {@link #COALESCE_WINDOW_MS} later or as soon as it holds
+ * {@link #MAX_BATCH_FILES} files. Every request of the batch waits for the scan and gets the problems of its own
+ * file. A cancelled request leaves its batch; a batch left by every request is cancelled.
+ */
+public class CheckScheduler {
+    private static final Logger LOG = Logger.getInstance(CheckScheduler.class);
+
+    static final long COALESCE_WINDOW_MS = 150;
+    static final int MAX_BATCH_FILES = 50;
+
+    private final Function<List<VirtualFile>, CompletableFuture<Map<PsiFile, List<Problem>>>> scanner;
+    private Batch pendingBatch;
+
+    public CheckScheduler(@NotNull final MypyPlugin plugin) {
+        this(files -> plugin.runScan(new ScanFiles(plugin, files), null));
+    }
+
+    /**
+     * A scheduler running its batches with the given scanner.
+     *
+     * @param scanner the scan of a batch of files, whose results are cancelled once every request left the batch.
+     */
+    CheckScheduler(@NotNull final Function<List<VirtualFile>, CompletableFuture<Map<PsiFile, List<Problem>>>> scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * Check a file with the other files requested in the same window, waiting for the result. This is expected to
+     * be called from a background thread with a progress indicator, whose cancellation is honoured while waiting.
+     *
+     * @param psiFile the file to check.
+     * @return the problems of the file, by file.
+     * @throws ProcessCanceledException if the progress indicator is cancelled.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public Map<PsiFile, List<Problem>> check(@NotNull final PsiFile psiFile) {
+        final VirtualFile virtualFile = psiFile.getVirtualFile();
+        if (virtualFile == null) {
+            return new HashMap<>();
+        }
+
+        final Batch batch;
+        final boolean full;
+        synchronized (this) {
+            if (pendingBatch == null) {
+                pendingBatch = new Batch();
+                final Batch newBatch = pendingBatch;
+                AppExecutorUtil.getAppScheduledExecutorService()
+                        .schedule(() -> start(newBatch), COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+            batch = pendingBatch;
+            batch.files.add(virtualFile);
+            batch.waiters++;
+            full = batch.files.size() >= MAX_BATCH_FILES;
+        }
+        if (full) {
+            start(batch);
+        }
+
+        try {
+            return sliceOf(ProgressIndicatorUtils.awaitWithCheckCanceled(batch.result), virtualFile);
+        } catch (ProcessCanceledException e) {
+            leave(batch);
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void start(final Batch batch) {
+        final List<VirtualFile> files;
+        synchronized (this) {
+            if (pendingBatch == batch) {
+                pendingBatch = null;
+            }
+            if (batch.started || batch.result.isDone()) {
+                return;
+            }
+            batch.started = true;
+            if (batch.waiters == 0) {
+                batch.result.complete(new HashMap<>());
+                return;
+            }
+            files = new ArrayList<>(batch.files);
+        }
+        LOG.debug("Checking a batch of " + files.size() + " files for " + batch.waiters + " requests");
+
+        // outside of the lock: finding the files to scan needs a read action
+        final CompletableFuture<Map<PsiFile, List<Problem>>> scan = scanner.apply(files);
+        scan.whenComplete((results, error) -> {
+            if (error != null) {
+                batch.result.completeExceptionally(error);
+            } else {
+                batch.result.complete(results);
+            }
+        });
+        synchronized (this) {
+            batch.scan = scan;
+            if (batch.waiters == 0) {
+                scan.cancel(false);
+            }
+        }
+    }
+
+    private synchronized void leave(final Batch batch) {
+        batch.waiters--;
+        if (batch.waiters > 0) {
+            return;
+        }
+        if (pendingBatch == batch) {
+            pendingBatch = null;
+        }
+        if (batch.scan != null) {
+            batch.scan.cancel(false);
+        }
+        batch.result.cancel(false);
+    }
+
+    static Map<PsiFile, List<Problem>> sliceOf(final Map<PsiFile, List<Problem>> problems,
+                                               final VirtualFile virtualFile) {
+        final Map<PsiFile, List<Problem>> slice = new HashMap<>();
+        for (Map.Entry<PsiFile, List<Problem>> entry : problems.entrySet()) {
+            if (virtualFile.equals(entry.getKey().getVirtualFile())) {
+                // the callers may filter their problems: they don't share the lists
+                slice.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        return slice;
+    }
+
+    private static final class Batch {
+        private final Set<VirtualFile> files = new LinkedHashSet<>();
+        private final CompletableFuture<Map<PsiFile, List<Problem>>> result = new CompletableFuture<>();
+        private int waiters;
+        private boolean started;
+        private Future<?> scan;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.analysis.AnalysisScope;
+import com.intellij.codeInspection.GlobalInspectionContext;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.leinardi.pycharm.mypy.MypyPlugin;
+import com.leinardi.pycharm.mypy.exception.MypyPluginException;
+import com.leinardi.pycharm.mypy.mpapi.MypyRunner;
+import com.leinardi.pycharm.mypy.util.Async;
+import com.leinardi.pycharm.mypy.util.FileTypes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * The scan of an "Inspect Code" run, which otherwise checks the files of the inspected scope one by one.
+ * <p>
+ * The first file inspected starts a scan of every Python file of the scope (sharded by {@link MypyRunner} when
+ * large) on a pooled thread, outside of its read action, and the files wait for it to be served their problems from
+ * its results. The scan is cancelled when no file waits for it anymore, and a cancelled or failed scan is started
+ * again by the next file, rather than serving no problems: after {@link #MAX_FAILED_SCANS} failures, a cancellation
+ * of the scan itself included, the files fail with the error of the scan.
+ */
+public class InspectionScan {
+    private static final Logger LOG = Logger.getInstance(InspectionScan.class);
+    private static final Key<InspectionScan> INSPECTION_SCAN_KEY = Key.create("mypy.inspection.scan");
+    static final int MAX_FAILED_SCANS = 2;
+
+    private final MypyPlugin plugin;
+    private final AnalysisScope scope;
+    private final Function<List<VirtualFile>, Map<PsiFile, List<Problem>>> scanner;
+    private volatile Set<VirtualFile> scannedFiles = new HashSet<>();
+    private CompletableFuture<Map<PsiFile, List<Problem>>> result;
+    private int waitingFiles;
+    private int failedScans;
+
+    private InspectionScan(@NotNull final MypyPlugin plugin, @NotNull final AnalysisScope scope) {
+        this(plugin, scope, files -> new ScanFiles(plugin, files).callOrFail());
+    }
+
+    /**
+     * A scan of the scope run by the given scanner.
+     *
+     * @param plugin  the plugin of the inspected project.
+     * @param scope   the inspected scope.
+     * @param scanner the scan of the Python files of the scope, throwing if it doesn't complete.
+     */
+    InspectionScan(@NotNull final MypyPlugin plugin, @NotNull final AnalysisScope scope,
+                   @NotNull final Function<List<VirtualFile>, Map<PsiFile, List<Problem>>> scanner) {
+        this.plugin = plugin;
+        this.scope = scope;
+        this.scanner = scanner;
+    }
+
+    /**
+     * The scan shared by the files of an inspection run.
+     *
+     * @param context the context of the inspection run.
+     * @param plugin  the plugin of the inspected project.
+     * @return the scan of the run, or null if the inspection has no scope.
+     */
+    @Nullable
+    public static InspectionScan of(@NotNull final GlobalInspectionContext context,
+                                    @NotNull final MypyPlugin plugin) {
+        AnalysisScope scope = context.getRefManager().getScope();
+        if (scope == null) {
+            return null;
+        }
+        synchronized (context) {
+            InspectionScan inspectionScan = context.getUserData(INSPECTION_SCAN_KEY);
+            if (inspectionScan == null) {
+                inspectionScan = new InspectionScan(plugin, scope);
+                context.putUserData(INSPECTION_SCAN_KEY, inspectionScan);
+            }
+            return inspectionScan;
+        }
+    }
+
+    /**
+     * The problems of a file of the inspection run, waiting for the scan of the whole scope.
+     *
+     * @param psiFile the inspected file.
+     * @return the problems of the file, by file.
+     * @throws ProcessCanceledException if the inspection is cancelled, or the scan keeps being cancelled itself.
+     * @throws MypyPluginException      if the scan keeps failing.
+     */
+    public Map<PsiFile, List<Problem>> check(@NotNull final PsiFile psiFile) {
+        final VirtualFile virtualFile = psiFile.getVirtualFile();
+        if (virtualFile == null) {
+            return new HashMap<>();
+        }
+
+        Map<PsiFile, List<Problem>> problems = null;
+        while (problems == null) {
+            final CompletableFuture<Map<PsiFile, List<Problem>>> scan = joinScan();
+            try {
+                // waits on a dependent future: cancelling the inspection of this file doesn't cancel the shared scan
+                problems = ProgressIndicatorUtils.awaitWithCheckCanceled(scan.handle((value, error) -> value));
+            } finally {
+                leaveScan(scan);
+            }
+            if (problems == null) {
+                throwIfFailedForGood(scan);
+            }
+        }
+
+        if (!scannedFiles.contains(virtualFile)) {
+            return plugin.getCheckScheduler().check(psiFile);
+        }
+        return CheckScheduler.sliceOf(problems, virtualFile);
+    }
+
+    private synchronized CompletableFuture<Map<PsiFile, List<Problem>>> joinScan() {
+        if (result == null || result.isCompletedExceptionally() && failedScans < MAX_FAILED_SCANS) {
+            result = startScan();
+        }
+        waitingFiles++;
+        return result;
+    }
+
+    private synchronized void leaveScan(final CompletableFuture<Map<PsiFile, List<Problem>>> scan) {
+        waitingFiles--;
+        if (waitingFiles == 0 && !scan.isDone()) {
+            LOG.debug("Cancelling the scan of the inspection scope " + scope + ": no file waits for it");
+            scan.cancel(true);
+        }
+    }
+
+    private CompletableFuture<Map<PsiFile, List<Problem>>> startScan() {
+        final AtomicReference<CompletableFuture<Map<PsiFile, List<Problem>>>> self = new AtomicReference<>();
+        final CompletableFuture<Map<PsiFile, List<Problem>>> scan = Async.executeOnPooledThread(() -> {
+            try {
+                final List<VirtualFile> files = ReadAction.nonBlocking(this::findPythonFiles)
+                        .expireWith(plugin)
+                        .executeSynchronously();
+                scannedFiles = new HashSet<>(files);
+                LOG.debug("Checking the " + files.size() + " files of the inspection scope " + scope);
+                return scanner.apply(files);
+            } catch (RuntimeException e) {
+                // counted before the scan completes, for the waiting files to see it. A scan cancelled because no
+                // file waits for it anymore is interrupted, but it didn't fail: a cancellation of its own, e.g. when
+                // the plugin is disposed, did
+                synchronized (this) {
+                    if (!self.get().isCancelled()) {
+                        failedScans++;
+                    }
+                }
+                throw e;
+            }
+        });
+        // set before the task can take the lock held by joinScan
+        self.set(scan);
+        return scan;
+    }
+
+    private void throwIfFailedForGood(final CompletableFuture<Map<PsiFile, List<Problem>>> scan) {
+        final Throwable error;
+        try {
+            scan.join();
+            return;
+        } catch (CancellationException e) {
+            // no file waited for it anymore: started again
+            return;
+        } catch (CompletionException e) {
+            error = unwrap(e);
+        }
+        synchronized (this) {
+            if (failedScans < MAX_FAILED_SCANS) {
+                return;
+            }
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        throw new MypyPluginException("An error occurred while scanning the inspection scope.", error);
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private List<VirtualFile> findPythonFiles() {
+        final List<VirtualFile> files = new ArrayList<>();
+        scope.accept(file -> {
+            if (!file.isDirectory() && FileTypes.isPython(file.getFileType())) {
+                files.add(file);
+            }
+            return true;
+        });
+        return files;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.leinardi.pycharm.mypy.MypyPlugin;
+import com.leinardi.pycharm.mypy.exception.MypyPluginException;
+import com.leinardi.pycharm.mypy.mpapi.Issue;
+import com.leinardi.pycharm.mypy.mpapi.MypyRunner;
+import com.leinardi.pycharm.mypy.mpapi.MypyVersion;
+import com.leinardi.pycharm.mypy.util.Hashes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project-level cache of the issues Mypy reported for a file, so that unchanged files are not checked again.
+ * <p>
+ * An entry is keyed by the path and the content hash of the checked file, and by a scan fingerprint: the Mypy
+ * version, the Mypy arguments, the content of the Mypy config file and a dependency generation. Mypy reads the
+ * imported modules from disk, so the generation is bumped, and the cache cleared, whenever a Python file or a
+ * directory of the local file system is created, deleted, moved or renamed, or the project roots change.
+ * <p>
+ * When the content of a Python file changes on disk, e.g. when it is saved, the results of the other files are
+ * dropped, as they may import it, but the results of the file itself are kept: they depend on its content, which
+ * is part of their key. A scan started before such a change only caches the results of the changed file.
+ * <p>
+ * The cache is bounded: the least recently used entries are dropped beyond {@link #MAX_ENTRIES}.
+ */
+public class MypyResultCache {
+    private static final Logger LOG = Logger.getInstance(MypyResultCache.class);
+
+    static final int MAX_ENTRIES = 5000;
+
+    private static final String CONFIG_FILE_OPTION = "--config-file";
+    // the config files Mypy looks for in the working directory when --config-file is not given
+    private static final String[] DEFAULT_CONFIG_FILES = {"mypy.ini", ".mypy.ini", "pyproject.toml", "setup.cfg"};
+    private static final String[] PYTHON_EXTENSIONS = {".py", ".pyi"};
+    private static final char SEPARATOR = '\0';
+    private static final int MAX_CONTENT_CHANGES = 64;
+    private static final long STATISTICS_LOG_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Project project;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // the paths of the last content changes, the latest last: guarded by entries
+    private final Deque<String> contentChanges = new ArrayDeque<>();
+    // the number of content changes: guarded by entries
+    private long contentGeneration;
+    private final AtomicLong dependencyGeneration = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong lastStatisticsLog = new AtomicLong();
+
+    public MypyResultCache(@NotNull final Project project, @NotNull final Disposable parentDisposable) {
+        this.project = project;
+
+        project.getMessageBus().connect(parentDisposable).subscribe(ModuleRootListener.TOPIC,
+                new ModuleRootListener() {
+                    @Override
+                    public void rootsChanged(@NotNull final ModuleRootEvent event) {
+                        invalidate();
+                    }
+                });
+        project.getMessageBus().connect(parentDisposable).subscribe(VirtualFileManager.VFS_CHANGES,
+                new BulkFileListener() {
+                    @Override
+                    public void after(@NotNull final List<? extends VFileEvent> events) {
+                        if (events.stream().anyMatch(MypyResultCache::changesDependencyTree)) {
+                            invalidate();
+                            return;
+                        }
+                        events.stream()
+                                .filter(event -> event instanceof VFileContentChangeEvent && isPython(event))
+                                .forEach(event -> contentChanged(event.getPath()));
+                    }
+                });
+    }
+
+    /**
+     * The fingerprint of the settings shared by the files of a scan, to combine with {@link #key}.
+     *
+     * @return the fingerprint, or null if the results of the scan can't be cached (e.g. Mypy is not available).
+     */
+    @Nullable
+    public String getScanFingerprint() {
+        // read first: a change during the scan leaves its results under a stale fingerprint
+        long generation = dependencyGeneration.get();
+        MypyVersion mypyVersion = project.getService(MypyPlugin.class).getProbeCache().getMypyVersion();
+        if (mypyVersion == null || MypyVersion.UNKNOWN.equals(mypyVersion)) {
+            return null;
+        }
+        List<String> mypyArguments;
+        try {
+            mypyArguments = MypyRunner.getMypyArguments(project, mypyVersion);
+        } catch (MypyPluginException e) {
+            // the scan reports the error
+            return null;
+        }
+        String configHash = hashConfigFiles(mypyArguments);
+        if (configHash == null) {
+            return null;
+        }
+        return Hashes.hash(mypyVersion.toString(), String.join(String.valueOf(SEPARATOR), mypyArguments), configHash,
+                Long.toString(generation));
+    }
+
+    /**
+     * The cache key of a file.
+     *
+     * @param scanFingerprint the fingerprint of the scan, see {@link #getScanFingerprint()}.
+     * @param path            the path of the file in the project.
+     * @param contentHash     the hash of the content of the file, see {@link Hashes#hash}.
+     * @return the cache key.
+     */
+    public static String key(final String scanFingerprint, final String path, final String contentHash) {
+        return scanFingerprint + SEPARATOR + path + SEPARATOR + contentHash;
+    }
+
+    /**
+     * The number of content changes of the Python files, to read when a scan starts and pass to {@link #put}.
+     *
+     * @return the content generation.
+     */
+    public long getContentGeneration() {
+        synchronized (entries) {
+            return contentGeneration;
+        }
+    }
+
+    /**
+     * The issues cached for a key.
+     *
+     * @param key the cache key.
+     * @return the issues, empty if the file has no issues, or null if the file needs to be checked.
+     */
+    @Nullable
+    public List<Issue> get(final String key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        (entry != null ? hitCount : missCount).incrementAndGet();
+        return entry != null ? entry.issues : null;
+    }
+
+    /**
+     * Cache the issues reported for a file, unless another file changed since the scan started.
+     *
+     * @param key                   the cache key.
+     * @param path                  the path of the file, as in its key.
+     * @param issues                the issues reported for the file, possibly empty.
+     * @param scanContentGeneration the content generation when the scan started, see
+     *                              {@link #getContentGeneration()}.
+     */
+    public void put(final String key, final String path, final List<Issue> issues,
+                    final long scanContentGeneration) {
+        List<Issue> copy = Collections.unmodifiableList(new ArrayList<>(issues));
+        synchronized (entries) {
+            if (onlyChangedSince(scanContentGeneration, path)) {
+                entries.put(key, new Entry(path, copy));
+            }
+        }
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    public void invalidate() {
+        dependencyGeneration.incrementAndGet();
+        synchronized (entries) {
+            // the scans in progress must not cache their results either
+            contentGeneration += MAX_CONTENT_CHANGES + 1;
+            contentChanges.clear();
+            entries.clear();
+        }
+    }
+
+    /**
+     * Drop the cached results of the files other than a changed file, which may import it.
+     *
+     * @param path the path of the changed file.
+     */
+    void contentChanged(final String path) {
+        synchronized (entries) {
+            contentGeneration++;
+            contentChanges.addLast(path);
+            if (contentChanges.size() > MAX_CONTENT_CHANGES) {
+                contentChanges.removeFirst();
+            }
+            entries.values().removeIf(entry -> !entry.path.equals(path));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Log the hit and miss counts, at most once a minute.
+     */
+    public void logStatistics() {
+        long now = System.currentTimeMillis();
+        long last = lastStatisticsLog.get();
+        if (now - last >= STATISTICS_LOG_INTERVAL_MS && lastStatisticsLog.compareAndSet(last, now)) {
+            LOG.info("Mypy result cache: " + hitCount.get() + " hits, " + missCount.get() + " misses, "
+                    + size() + " entries");
+        }
+    }
+
+    @Nullable
+    private String hashConfigFiles(final List<String> mypyArguments) {
+        List<File> configFiles = new ArrayList<>();
+        int option = mypyArguments.lastIndexOf(CONFIG_FILE_OPTION);
+        if (option >= 0 && option + 1 < mypyArguments.size()) {
+            configFiles.add(new File(mypyArguments.get(option + 1)));
+        } else if (project.getBasePath() != null) {
+            for (String name : DEFAULT_CONFIG_FILES) {
+                configFiles.add(new File(project.getBasePath(), name));
+            }
+        }
+
+        MessageDigest digest = Hashes.newDigest();
+        for (File configFile : configFiles) {
+            digest.update(configFile.getPath().getBytes(StandardCharsets.UTF_8));
+            if (configFile.isFile()) {
+                try {
+                    digest.update(Files.readAllBytes(configFile.toPath()));
+                } catch (IOException e) {
+                    LOG.debug("Can't read the Mypy config file " + configFile, e);
+                    return null;
+                }
+            }
+        }
+        return Hashes.toHex(digest.digest());
+    }
+
+    private boolean onlyChangedSince(final long scanContentGeneration, final String path) {
+        long changes = contentGeneration - scanContentGeneration;
+        if (changes > contentChanges.size()) {
+            return false;
+        }
+        Iterator<String> latestFirst = contentChanges.descendingIterator();
+        for (long change = 0; change < changes; change++) {
+            if (!latestFirst.next().equals(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether an event changes which modules Mypy finds, rather than the content of a module.
+     */
+    static boolean changesDependencyTree(final VFileEvent event) {
+        VirtualFile file = event.getFile();
+        if (file != null && file.isDirectory()) {
+            return true;
+        }
+        return !(event instanceof VFileContentChangeEvent) && isPython(event);
+    }
+
+    private static boolean isPython(final VFileEvent event) {
+        String path = event.getPath();
+        for (String extension : PYTHON_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The cached issues of a file.
+     */
+    private static final class Entry {
+        private final String path;
+        private final List<Issue> issues;
+
+        Entry(final String path, final List<Issue> issues) {
+            this.path = path;
+            this.issues = issues;
+        }
+    }
+
+}
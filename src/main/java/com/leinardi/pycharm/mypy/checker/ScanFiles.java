@@ -16,37 +16,54 @@
 
 package com.leinardi.pycharm.mypy.checker;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.vfs.VirtualFileVisitor;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.leinardi.pycharm.mypy.MypyPlugin;
 import com.leinardi.pycharm.mypy.exception.MypyPluginException;
 import com.leinardi.pycharm.mypy.mpapi.Issue;
 import com.leinardi.pycharm.mypy.mpapi.MypyRunner;
 import com.leinardi.pycharm.mypy.mpapi.ProcessResultsThread;
 import com.leinardi.pycharm.mypy.util.Notifications;
+import com.leinardi.pycharm.mypy.util.VfUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static java.util.Collections.emptyMap;
 
 public class ScanFiles implements Callable<Map<PsiFile, List<Problem>>> {
 
     private static final Logger LOG = Logger.getInstance(ScanFiles.class);
+    // Mypy reports columns as character offsets: a tab is a single column (only --pretty expands them)
+    private static final int TAB_WIDTH = 1;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long MAX_BATCH_DELAY_MS = 500;
+    // the issues of different files are mapped to their PSI elements concurrently
+    private static final ExecutorService MAPPING_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "Mypy Issue Mapping", Runtime.getRuntime().availableProcessors());
 
-    private final List<PsiFile> files;
+    private final List<VirtualFile> files;
     private final Set<ScannerListener> listeners = new HashSet<>();
     private final MypyPlugin plugin;
 
@@ -57,41 +74,68 @@ public class ScanFiles implements Callable<Map<PsiFile, List<Problem>>> {
         files = findAllFilesFor(virtualFiles);
     }
 
-    private List<PsiFile> findAllFilesFor(@NotNull final List<VirtualFile> virtualFiles) {
-        final List<PsiFile> childFiles = new ArrayList<>();
-        final PsiManager psiManager = PsiManager.getInstance(this.plugin.getProject());
-        for (final VirtualFile virtualFile : virtualFiles) {
-            childFiles.addAll(buildFilesList(psiManager, virtualFile));
-        }
+    private List<VirtualFile> findAllFilesFor(@NotNull final List<VirtualFile> virtualFiles) {
+        final List<VirtualFile> childFiles = new ArrayList<>();
+        ReadAction.run(() -> VfUtil.processPythonFiles(plugin.getProject(), virtualFiles.toArray(new VirtualFile[0]),
+                childFiles::add));
         return childFiles;
     }
 
+    /**
+     * Run the scan. A cancelled or failed scan has no problems: see {@link #callOrFail()} to tell them apart.
+     *
+     * @return the problems found, by file.
+     */
     @Override
     public final Map<PsiFile, List<Problem>> call() {
+        try {
+            return callOrFail();
+        } catch (final ProcessCanceledException | MypyPluginException e) {
+            return emptyMap();
+        }
+    }
+
+    /**
+     * Run the scan, notifying the listeners as {@link #call()} does, but throwing if it doesn't complete.
+     *
+     * @return the problems found, by file.
+     * @throws ProcessCanceledException if the scan is cancelled.
+     * @throws MypyPluginException      if the scan fails.
+     */
+    public final Map<PsiFile, List<Problem>> callOrFail() {
         try {
             fireCheckStarting(files);
             return scanCompletedSuccessfully(checkFiles(new HashSet<>(files)));
-        } catch (final InterruptedIOException | InterruptedException e) {
+        } catch (final InterruptedIOException | InterruptedException | ProcessCanceledException e) {
             LOG.debug("Scan cancelled by PyCharm", e);
-            return scanCompletedSuccessfully(emptyMap());
+            scanCompletedSuccessfully(emptyMap());
+            throw e instanceof ProcessCanceledException ? (ProcessCanceledException) e
+                    : new ProcessCanceledException(e);
         } catch (final MypyPluginException e) {
             LOG.warn("An error occurred while scanning a file.", e);
-            return scanFailedWithError(e);
+            scanFailedWithError(e);
+            throw e;
         } catch (final Throwable e) {
             LOG.warn("An error occurred while scanning a file.", e);
-            return scanFailedWithError(new MypyPluginException("An error occurred while scanning a file.", e));
+            final MypyPluginException error = new MypyPluginException("An error occurred while scanning a file.", e);
+            scanFailedWithError(error);
+            throw error;
         }
     }
 
-    private Map<String, PsiFile> mapFilesToElements(final List<ScannableFile> filesToScan) {
-        final Map<String, PsiFile> filePathsToElements = new HashMap<>();
+    private Map<String, VirtualFile> mapFilesToElements(final List<ScannableFile> filesToScan) {
+        final Map<String, VirtualFile> filePathsToFiles = new HashMap<>();
         for (ScannableFile scannableFile : filesToScan) {
-            filePathsToElements.put(scannableFile.getAbsolutePath(), scannableFile.getPsiFile());
+            filePathsToFiles.put(scannableFile.getAbsolutePath(), scannableFile.getVirtualFile());
+            // Mypy reports the issues of a shadowed file under the real path, but a note may name the snapshot
+            if (scannableFile.getShadowPath() != null) {
+                filePathsToFiles.put(scannableFile.getShadowPath(), scannableFile.getVirtualFile());
+            }
         }
-        return filePathsToElements;
+        return filePathsToFiles;
     }
 
-    private Map<PsiFile, List<Problem>> checkFiles(final Set<PsiFile> filesToScan)
+    private Map<PsiFile, List<Problem>> checkFiles(final Set<VirtualFile> filesToScan)
             throws InterruptedIOException, InterruptedException {
         final List<ScannableFile> scannableFiles = new ArrayList<>();
         try {
@@ -104,22 +148,70 @@ public class ScanFiles implements Callable<Map<PsiFile, List<Problem>>> {
 
     private Map<PsiFile, List<Problem>> scan(final List<ScannableFile> filesToScan)
             throws InterruptedIOException, InterruptedException {
-        Map<String, PsiFile> fileNamesToPsiFiles = mapFilesToElements(filesToScan);
-        List<Issue> errors = MypyRunner.scan(plugin.getProject(), fileNamesToPsiFiles.keySet());
-        String baseDir = plugin.getProject().getBasePath();
-        int tabWidth = 4;
-        final ProcessResultsThread findThread = new ProcessResultsThread(false, tabWidth, baseDir,
-                errors, fileNamesToPsiFiles);
+        Map<String, VirtualFile> fileNamesToFiles = mapFilesToElements(filesToScan);
+        final IssueBatcher issueBatcher = new IssueBatcher(fileNamesToFiles);
+
+        try {
+            // the cached issues are reported right away, only the other files are checked by Mypy
+            final MypyResultCache resultCache = plugin.getResultCache();
+            final long contentGeneration = resultCache.getContentGeneration();
+            final String scanFingerprint = resultCache.getScanFingerprint();
+            final Map<String, String> cacheKeysToStore = new HashMap<>();
+            final Map<String, String> sourcePaths = new HashMap<>();
+            final Set<String> filesToCheck = new HashSet<>();
+            final Map<String, String> shadowFiles = new HashMap<>();
+            for (ScannableFile scannableFile : filesToScan) {
+                String path = scannableFile.getAbsolutePath();
+                if (scannableFile.getShadowPath() != null) {
+                    shadowFiles.put(path, scannableFile.getShadowPath());
+                }
+                if (scanFingerprint == null) {
+                    filesToCheck.add(path);
+                    continue;
+                }
+                String cacheKey = MypyResultCache.key(scanFingerprint, scannableFile.getSourcePath(),
+                        scannableFile.getContentHash());
+                List<Issue> cachedIssues = resultCache.get(cacheKey);
+                if (cachedIssues != null) {
+                    cachedIssues.forEach(issue -> issueBatcher.accept(issue.withPath(path)));
+                } else {
+                    filesToCheck.add(path);
+                    cacheKeysToStore.put(path, cacheKey);
+                    sourcePaths.put(path, scannableFile.getSourcePath());
+                }
+            }
 
-        ReadAction.run(findThread);
-        return findThread.getProblems();
+            if (!filesToCheck.isEmpty()) {
+                final String baseDir = plugin.getProject().getBasePath();
+                final Map<String, List<Issue>> issuesByFile = new HashMap<>();
+                cacheKeysToStore.keySet().forEach(path -> issuesByFile.put(path, new ArrayList<>()));
+                MypyRunner.scan(plugin.getProject(), filesToCheck, shadowFiles, issue -> {
+                    List<Issue> fileIssues = issuesByFile.get(ProcessResultsThread.resolvePath(baseDir, issue));
+                    if (fileIssues != null) {
+                        fileIssues.add(issue);
+                    }
+                    issueBatcher.accept(issue);
+                });
+                // only reached if Mypy completed: an interrupted or failed scan is not cached
+                cacheKeysToStore.forEach((path, cacheKey) -> resultCache.put(cacheKey, sourcePaths.get(path),
+                        issuesByFile.get(path), contentGeneration));
+            }
+            issueBatcher.flush();
+            issueBatcher.awaitMappings();
+            resultCache.logStatistics();
+
+            // files without issues are only known to be scanned once Mypy exits
+            fireFilesScanned(filesToScan.size() - issueBatcher.problems.size());
+            return issueBatcher.problems;
+        } finally {
+            // a failed or cancelled scan stops mapping its issues
+            issueBatcher.cancelMappings();
+        }
     }
 
-    private Map<PsiFile, List<Problem>> scanFailedWithError(final MypyPluginException e) {
+    private void scanFailedWithError(final MypyPluginException e) {
         Notifications.showException(plugin.getProject(), e);
         fireScanFailedWithError(e);
-
-        return emptyMap();
     }
 
     private Map<PsiFile, List<Problem>> scanCompletedSuccessfully(final Map<PsiFile, List<Problem>> filesToProblems) {
@@ -127,14 +219,33 @@ public class ScanFiles implements Callable<Map<PsiFile, List<Problem>>> {
         return filesToProblems;
     }
 
+    /**
+     * The files to scan, the children of the directories included.
+     *
+     * @return the files to scan.
+     */
+    public List<VirtualFile> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
     public void addListener(final ScannerListener listener) {
         listeners.add(listener);
     }
 
-    private void fireCheckStarting(final List<PsiFile> filesToScan) {
+    private void fireCheckStarting(final List<VirtualFile> filesToScan) {
         listeners.forEach(listener -> listener.scanStarting(filesToScan));
     }
 
+    private void fireFilesScanned(final int count) {
+        if (count > 0) {
+            listeners.forEach(listener -> listener.filesScanned(count));
+        }
+    }
+
+    private void fireProblemsFound(final Map<PsiFile, List<Problem>> problems) {
+        listeners.forEach(listener -> listener.problemsFound(problems));
+    }
+
     private void fireScanCompletedSuccessfully(
             final Map<PsiFile, List<Problem>> fileResults) {
         listeners.forEach(listener -> listener.scanCompletedSuccessfully(fileResults));
@@ -144,37 +255,130 @@ public class ScanFiles implements Callable<Map<PsiFile, List<Problem>>> {
         listeners.forEach(listener -> listener.scanFailedWithError(error));
     }
 
-    private List<PsiFile> buildFilesList(final PsiManager psiManager, final VirtualFile virtualFile) {
-        final List<PsiFile> allChildFiles = new ArrayList<>();
-        ReadAction.run(() -> {
-            final FindChildFiles visitor = new FindChildFiles(virtualFile, psiManager);
-            VfsUtilCore.visitChildrenRecursively(virtualFile, visitor);
-            allChildFiles.addAll(visitor.locatedFiles);
-        });
-        return allChildFiles;
-    }
+    /**
+     * Maps the issues to problems in small batches while Mypy is still running, so that the listeners can display
+     * them progressively. The PSI is only loaded for the files with issues.
+     */
+    private class IssueBatcher implements Consumer<Issue> {
+        private final Map<String, VirtualFile> fileNamesToFiles;
+        private final Map<PsiFile, List<Problem>> problems = new ConcurrentHashMap<>();
+        private List<Issue> pendingIssues = new ArrayList<>();
+        // flushed by the thread parsing the Mypy output, joined by the scan once Mypy exits
+        private final List<Future<?>> mappings = new ArrayList<>();
+        private long lastFlushTime = System.currentTimeMillis();
+
+        IssueBatcher(final Map<String, VirtualFile> fileNamesToFiles) {
+            this.fileNamesToFiles = fileNamesToFiles;
+        }
 
-    private static class FindChildFiles extends VirtualFileVisitor {
+        @Override
+        public void accept(final Issue issue) {
+            pendingIssues.add(issue);
+            if (pendingIssues.size() >= MAX_BATCH_SIZE
+                    || System.currentTimeMillis() - lastFlushTime >= MAX_BATCH_DELAY_MS) {
+                flush();
+            }
+        }
 
-        private final VirtualFile virtualFile;
-        private final PsiManager psiManager;
+        void flush() {
+            lastFlushTime = System.currentTimeMillis();
+            if (pendingIssues.isEmpty()) {
+                return;
+            }
+            final List<Issue> batch = pendingIssues;
+            pendingIssues = new ArrayList<>();
 
-        final List<PsiFile> locatedFiles = new ArrayList<>();
+            final String baseDir = plugin.getProject().getBasePath();
+            final Map<VirtualFile, List<Issue>> issuesByFile = new LinkedHashMap<>();
+            for (Issue issue : batch) {
+                final VirtualFile file = fileNamesToFiles.get(ProcessResultsThread.resolvePath(baseDir, issue));
+                if (file == null) {
+                    LOG.info("Could not find mapping for file: " + issue.getPath() + " in " + fileNamesToFiles);
+                    continue;
+                }
+                issuesByFile.computeIfAbsent(file, key -> new ArrayList<>()).add(issue);
+            }
 
-        FindChildFiles(final VirtualFile virtualFile, final PsiManager psiManager) {
-            this.virtualFile = virtualFile;
-            this.psiManager = psiManager;
+            if (ApplicationManager.getApplication().isReadAccessAllowed()) {
+                // the calling read action can't be interrupted anyway
+                for (Map.Entry<VirtualFile, List<Issue>> entry : issuesByFile.entrySet()) {
+                    publish(mapToProblems(baseDir, entry.getKey(), entry.getValue()));
+                }
+                return;
+            }
+            // each file is mapped concurrently in its own read action, which a write action interrupts and restarts
+            // later, while the Mypy output keeps being parsed: the mappings are joined once Mypy exits
+            for (Map.Entry<VirtualFile, List<Issue>> entry : issuesByFile.entrySet()) {
+                mappings.add(MAPPING_EXECUTOR.submit(() ->
+                        publish(mapToProblemsInReadAction(baseDir, entry.getKey(), entry.getValue()))));
+            }
         }
 
-        @Override
-        public boolean visitFile(@NotNull final VirtualFile file) {
-            if (!file.isDirectory()) {
-                final PsiFile psiFile = psiManager.findFile(virtualFile);
-                if (psiFile != null) {
-                    locatedFiles.add(psiFile);
+        /**
+         * Wait for the mappings of the flushed batches, each file being published as soon as it is mapped.
+         */
+        void awaitMappings() {
+            try {
+                for (Future<?> mapping : mappings) {
+                    mapping.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            } catch (CancellationException e) {
+                throw new ProcessCanceledException(e);
+            } catch (java.util.concurrent.ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw new MypyPluginException("Error while mapping the Mypy issues", e.getCause());
+            }
+        }
+
+        void cancelMappings() {
+            mappings.forEach(mapping -> mapping.cancel(true));
+        }
+
+        private Map<PsiFile, List<Problem>> mapToProblemsInReadAction(final String baseDir, final VirtualFile file,
+                                                                      final List<Issue> fileIssues) {
+            return ReadAction.nonBlocking(() -> mapToProblems(baseDir, file, fileIssues))
+                    .expireWith(plugin)
+                    .executeSynchronously();
+        }
+
+        private Map<PsiFile, List<Problem>> mapToProblems(final String baseDir, final VirtualFile file,
+                                                          final List<Issue> fileIssues) {
+            final PsiFile psiFile = file.isValid() ? PsiManager.getInstance(plugin.getProject()).findFile(file) : null;
+            if (psiFile == null) {
+                LOG.debug("No PSI to map the issues of " + file.getPath());
+                return emptyMap();
+            }
+            final Map<String, PsiFile> fileNamesToPsiFiles = new HashMap<>();
+            fileIssues.forEach(issue -> fileNamesToPsiFiles.put(ProcessResultsThread.resolvePath(baseDir, issue),
+                    psiFile));
+            final ProcessResultsThread findThread = new ProcessResultsThread(false, TAB_WIDTH, baseDir,
+                    fileIssues, fileNamesToPsiFiles);
+            findThread.run();
+            return findThread.getProblems();
+        }
+
+        /**
+         * Publish the problems of a file as soon as they are mapped, from any mapping thread.
+         */
+        private void publish(final Map<PsiFile, List<Problem>> fileProblems) {
+            final AtomicInteger newFiles = new AtomicInteger();
+            for (Map.Entry<PsiFile, List<Problem>> entry : fileProblems.entrySet()) {
+                problems.compute(entry.getKey(), (psiFile, problemsOfFile) -> {
+                    if (problemsOfFile == null) {
+                        newFiles.incrementAndGet();
+                        return new ArrayList<>(entry.getValue());
+                    }
+                    problemsOfFile.addAll(entry.getValue());
+                    return problemsOfFile;
+                });
             }
-            return true;
+            fireProblemsFound(fileProblems);
+            fireFilesScanned(newFiles.get());
         }
     }
 
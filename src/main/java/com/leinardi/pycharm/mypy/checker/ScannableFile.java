@@ -19,234 +19,252 @@ package com.leinardi.pycharm.mypy.checker;
 import com.intellij.application.options.CodeStyle;
 import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
-import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.leinardi.pycharm.mypy.MypyConfigService;
 import com.leinardi.pycharm.mypy.MypyPlugin;
-import com.leinardi.pycharm.mypy.util.TempDirProvider;
+import com.leinardi.pycharm.mypy.exception.MypyPluginException;
+import com.leinardi.pycharm.mypy.util.Hashes;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.IntUnaryOperator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
-import static java.util.Optional.ofNullable;
-
 /**
  * A representation of a file able to be scanned.
+ * <p>
+ * A file saved on disk is passed to Mypy as is: neither its PSI nor its document is loaded. Only an unsaved file, or
+ * a file out of the local file system, is snapshotted from its document. The text of the document is taken in a
+ * read action, but encoded and written without read access.
  */
 public class ScannableFile {
     private static final Logger LOG = Logger.getInstance(ScannableFile.class);
-
-    private static final String TEMPFILE_DIR_PREFIX = "csi-";
-
-    private static final AtomicInteger TEMP_FILE_SOURCE = new AtomicInteger();
-    private static final int MAX_TEMP_FILE_SUFFIX = 999;
-
+    // distinguishes the hash of a file on disk from the hash of a content
+    private static final String DISK_CONTENT = "disk";
+    // the snapshots of unsaved files are encoded and written out of the read action
+    private static final ExecutorService SNAPSHOT_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "Mypy Snapshot Writer", Runtime.getRuntime().availableProcessors());
+
+    private final Project project;
+    private final VirtualFile virtualFile;
     private final File realFile;
-    private final File baseTempDir;
-    private final PsiFile psiFile;
+    @Nullable
+    private final File shadowFile;
+    @Nullable
+    private final SnapshotStore.Snapshot snapshot;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final String contentHash;
 
     /**
-     * Create a new scannable file from a PSI file.
+     * Create a new scannable file from the state of a virtual file, without read access.
      * <p>
-     * If required this will create a temporary copy of the file.
+     * If required this will snapshot the content of the file. With {@code useShadowFile}, the snapshot of an
+     * unsaved file is a shadow file: the file is still checked under its own path.
      *
-     * @param psiFile the psiFile to create the file from.
-     * @throws IOException if file creation is required and fails.
+     * @param project       the project of the file.
+     * @param state         the state of the file, taken in a read action.
+     * @param useShadowFile true to check an unsaved file through a shadow file.
+     * @throws IOException if a snapshot is required and fails.
      */
-    public ScannableFile(@NotNull final PsiFile psiFile) throws IOException {
-        this.psiFile = psiFile;
+    private ScannableFile(@NotNull final Project project, @NotNull final FileState state,
+                          final boolean useShadowFile) throws IOException {
+        this.project = project;
+        this.virtualFile = state.virtualFile;
+
+        if (state.content != null) {
+            contentHash = Hashes.hash(state.content);
+            snapshot = snapshotStoreOf(project).acquire(virtualFile, state.content, state.charset,
+                    state.bom, state.lineSeparator, contentHash);
+        } else if (state.savedContent != null) {
+            // Mypy reads the file from disk, saved from the document: the same hash as its last snapshot, whose
+            // cached results stay valid once saved
+            contentHash = Hashes.hash(state.savedContent);
+            snapshot = null;
+        } else {
+            contentHash = Hashes.hash(DISK_CONTENT, Long.toString(state.timeStamp),
+                    Long.toString(state.length));
+            snapshot = null;
+        }
 
-        if (!existsOnFilesystem(psiFile) || documentIsModifiedAndUnsaved(psiFile)) {
-            baseTempDir = prepareBaseTmpDirFor(psiFile);
-            realFile = createTemporaryFileFor(psiFile, baseTempDir);
+        if (snapshot != null && state.existsOnFilesystem && useShadowFile) {
+            shadowFile = snapshot.getFile();
+            realFile = new File(virtualFile.getPath());
+        } else if (snapshot != null) {
+            shadowFile = null;
+            realFile = snapshot.getFile();
         } else {
-            baseTempDir = null;
-            realFile = new File(pathOf(psiFile));
+            shadowFile = null;
+            realFile = new File(virtualFile.getPath());
         }
     }
 
-    public static List<ScannableFile> createAndValidate(@NotNull final Collection<PsiFile> psiFiles,
+    /**
+     * Whether a file can be scanned, validated without loading its PSI nor its document.
+     *
+     * @param virtualFile the file.
+     * @param project     the project of the file.
+     * @return true if the file can be scanned.
+     */
+    public static boolean isScannable(@Nullable final VirtualFile virtualFile, @NotNull final Project project) {
+        return ReadAction.compute(() -> VirtualFileValidator.isScannable(virtualFile, project));
+    }
+
+    /**
+     * Create the scannable files of the valid files. The state of the files is taken in one short read action, the
+     * snapshots are then encoded and written on background threads without read access, so that a write action
+     * never waits for the disk.
+     *
+     * @param virtualFiles the files to scan.
+     * @param plugin       the plugin of the project.
+     * @return the scannable files, to {@link #deleteIfRequired} when the scan completes.
+     * @throws ProcessCanceledException if the thread is interrupted while the snapshots are written.
+     */
+    public static List<ScannableFile> createAndValidate(@NotNull final Collection<VirtualFile> virtualFiles,
                                                         @NotNull final MypyPlugin plugin/*,
                                                         @Nullable final Module module*/) {
-        ThrowableComputable<List<ScannableFile>, RuntimeException> action = () -> psiFiles.stream()
-                .filter(currentFile -> PsiFileValidator.isScannable(currentFile, plugin.getProject()))
-                .map(ScannableFile::create)
+        final Project project = plugin.getProject();
+        final MypyConfigService mypyConfigService = MypyConfigService.getInstance(project);
+        final boolean useShadowFiles = mypyConfigService != null
+                && mypyConfigService.isUseShadowFiles()
+                && !mypyConfigService.isUseDaemon();
+        ThrowableComputable<List<FileState>, RuntimeException> action = () -> virtualFiles.stream()
+                .filter(currentFile -> VirtualFileValidator.isScannable(currentFile, project))
+                .map(virtualFile -> FileState.of(project, virtualFile))
                 .filter(Objects::nonNull)
-                .collect(Collectors.toCollection(CopyOnWriteArrayList::new));
-        return ReadAction.compute(action);
+                .collect(Collectors.toList());
+        final List<FileState> states = ReadAction.compute(action);
+
+        final List<ScannableFile> files = new ArrayList<>();
+        final List<CompletableFuture<ScannableFile>> snapshots = new ArrayList<>();
+        for (FileState state : states) {
+            if (state.content == null) {
+                files.add(create(project, state, useShadowFiles));
+            } else {
+                snapshots.add(CompletableFuture.supplyAsync(() -> create(project, state, useShadowFiles),
+                        SNAPSHOT_EXECUTOR));
+            }
+        }
+        boolean completed = false;
+        try {
+            for (CompletableFuture<ScannableFile> snapshot : snapshots) {
+                files.add(snapshot.get());
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessCanceledException(e);
+        } catch (CancellationException e) {
+            throw new ProcessCanceledException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MypyPluginException("Error while writing the snapshots of the files", e.getCause());
+        } finally {
+            if (!completed) {
+                releaseAll(files, snapshots);
+            }
+        }
+        files.removeIf(Objects::isNull);
+        return files;
     }
 
     @Nullable
-    private static ScannableFile create(@NotNull final PsiFile psiFile) {
+    private static ScannableFile create(@NotNull final Project project, @NotNull final FileState state,
+                                        final boolean useShadowFile) {
         try {
-            final CreateScannableFileAction fileAction = new CreateScannableFileAction(psiFile);
-            ReadAction.run(fileAction);
-
-            //noinspection ThrowableResultOfMethodCallIgnored
-            if (fileAction.getFailure() != null) {
-                throw fileAction.getFailure();
-            }
-
-            return fileAction.getFile();
+            return new ScannableFile(project, state, useShadowFile);
         } catch (IOException e) {
-            LOG.warn("Failure when creating temporary file", e);
+            LOG.warn("Failure when creating the snapshot of a file", e);
             return null;
         }
     }
 
-    private String pathOf(@NotNull final PsiFile file) {
-        return virtualFileOf(file)
-                .map(VirtualFile::getPath)
-                .orElseThrow(() ->
-                        new IllegalStateException("PSIFile " + "does not have associated virtual file: " + file));
-    }
-
-    private File createTemporaryFileFor(@NotNull final PsiFile file,
-                                        //                                        @Nullable final Module module,
-                                        @NotNull final File tempDir) throws IOException {
-        final File temporaryFile = new File(parentDirFor(file, tempDir), file.getName());
-        temporaryFile.deleteOnExit();
-
-        writeContentsToFile(file, temporaryFile);
-
-        return temporaryFile;
-    }
-
-    private File parentDirFor(@NotNull final PsiFile file,
-                              //                              @Nullable final Module module,
-                              @NotNull final File baseTmpDir) {
-        File tmpDirForFile = relativePathToProjectRoot(file, baseTmpDir);
-
-        //        if (tmpDirForFile == null && module != null) {
-        //            tmpDirForFile = relativePathToModuleContentRoots(file, module, baseTmpDir);
-        //        }
-        //
-        //        if (tmpDirForFile == null && file instanceof PsiJavaFile) {
-        //            tmpDirForFile = classPackagePath((PsiJavaFile) file, baseTmpDir);
-        //        }
-
-        if (tmpDirForFile == null) {
-            tmpDirForFile = baseTmpDir;
-        }
-
-        //noinspection ResultOfMethodCallIgnored
-        tmpDirForFile.mkdirs();
-
-        return tmpDirForFile;
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private static void releaseAll(final List<ScannableFile> files,
+                                   final List<CompletableFuture<ScannableFile>> snapshots) {
+        files.forEach(ScannableFile::deleteIfRequired);
+        // the snapshots still being written are released once written
+        snapshots.forEach(snapshot -> snapshot.thenAccept(ScannableFile::deleteIfRequired));
     }
 
-    //    @NotNull
-    //    private File classPackagePath(final @NotNull PsiJavaFile file, final @NotNull File baseTmpDir) {
-    //        final String packagePath = file.getPackageName().replaceAll("\\.", Matcher.quoteReplacement(File
-    //        .separator));
-    //
-    //        return new File(baseTmpDir.getAbsolutePath() + File.separator + packagePath);
-    //    }
-
-    private File relativePathToProjectRoot(final @NotNull PsiFile file, final @NotNull File baseTmpDir) {
-        if (file.getParent() != null) {
-            final String baseDirUrl = ProjectUtil.guessProjectDir(file.getProject()).getUrl();
-
-            final String parentUrl = file.getParent().getVirtualFile().getUrl();
-            if (parentUrl.startsWith(baseDirUrl)) {
-                return new File(baseTmpDir.getAbsolutePath() + parentUrl.substring(baseDirUrl.length()));
-            }
+    /**
+     * The state of a file a scan needs, taken in a read action: the content of an unsaved file, or of a file out of
+     * the local file system, is snapshotted later from this state.
+     */
+    private static final class FileState {
+        private final VirtualFile virtualFile;
+        private final boolean existsOnFilesystem;
+        private final long timeStamp;
+        private final long length;
+        @Nullable
+        private final CharSequence content;
+        // the content of the loaded document of a saved file, only hashed
+        @Nullable
+        private final CharSequence savedContent;
+        private final Charset charset;
+        @Nullable
+        private final byte[] bom;
+        private final String lineSeparator;
+
+        private FileState(final VirtualFile virtualFile, final boolean existsOnFilesystem,
+                          @Nullable final CharSequence content, @Nullable final CharSequence savedContent,
+                          final String lineSeparator) {
+            this.virtualFile = virtualFile;
+            this.existsOnFilesystem = existsOnFilesystem;
+            this.timeStamp = virtualFile.getTimeStamp();
+            this.length = virtualFile.getLength();
+            this.content = content;
+            this.savedContent = savedContent;
+            this.charset = virtualFile.getCharset();
+            this.bom = virtualFile.getBOM();
+            this.lineSeparator = lineSeparator;
         }
-        return null;
-    }
-
-//    private File relativePathToModuleContentRoots(final @NotNull PsiFile file, final @NotNull Module module, final
-//    @NotNull File baseTmpDir) {
-//        if (file.getParent() != null) {
-//            final String parentUrl = file.getParent().getVirtualFile().getUrl();
-//            for (String moduleSourceRoot : ModuleRootManager.getInstance(module).getContentRootUrls()) {
-//                if (parentUrl.startsWith(moduleSourceRoot)) {
-//                    return new File(baseTmpDir.getAbsolutePath() + parentUrl.substring(moduleSourceRoot.length()));
-//                }
-//            }
-//        }
-//        return null;
-//    }
 
-    private File prepareBaseTmpDirFor(final PsiFile tempPsiFile) {
-        final File baseTmpDir = new File(new TempDirProvider().forPersistedPsiFile(tempPsiFile),
-                tempFileDirectoryName());
-        baseTmpDir.deleteOnExit();
-        return baseTmpDir;
-    }
-
-    private String tempFileDirectoryName() {
-        return String.format("%s%03d", TEMPFILE_DIR_PREFIX, TEMP_FILE_SOURCE
-                .getAndUpdate(incrementUntil(MAX_TEMP_FILE_SUFFIX)));
-    }
-
-    @NotNull
-    private IntUnaryOperator incrementUntil(final int maxValue) {
-        return operand -> {
-            if (operand >= maxValue) {
-                return 0;
+        @Nullable
+        static FileState of(@NotNull final Project project, @NotNull final VirtualFile virtualFile) {
+            final boolean existsOnFilesystem = LocalFileSystem.getInstance().exists(virtualFile);
+            final FileDocumentManager fileDocumentManager = FileDocumentManager.getInstance();
+            Document document = null;
+            if (fileDocumentManager.isFileModified(virtualFile)) {
+                document = fileDocumentManager.getCachedDocument(virtualFile);
+                if (document != null && !fileDocumentManager.isDocumentUnsaved(document)) {
+                    document = null;
+                }
             }
-            return operand + 1;
-        };
-    }
-
-    private boolean existsOnFilesystem(@NotNull final PsiFile file) {
-        return virtualFileOf(file).map(virtualFile -> LocalFileSystem.getInstance().exists(virtualFile)).orElse(false);
-    }
-
-    private boolean documentIsModifiedAndUnsaved(final PsiFile file) {
-        final FileDocumentManager fileDocumentManager = FileDocumentManager.getInstance();
-        return virtualFileOf(file).filter(fileDocumentManager::isFileModified).map(fileDocumentManager::getDocument)
-                .map(fileDocumentManager::isDocumentUnsaved).orElse(false);
-    }
-
-    private void writeContentsToFile(final PsiFile file, final File outFile) throws IOException {
-        final String lineSeparator = CodeStyle.getSettings(file.getProject()).getLineSeparator();
-
-        final Writer tempFileOut = writerTo(outFile, charSetOf(file));
-        for (final char character : file.getText().toCharArray()) {
-            if (character == '\n') { // PyCharm uses \n internally
-                tempFileOut.write(lineSeparator);
-            } else {
-                tempFileOut.write(character);
+            if (document == null && !existsOnFilesystem) {
+                document = fileDocumentManager.getDocument(virtualFile);
+                if (document == null) {
+                    LOG.warn("No content to snapshot for " + virtualFile.getPath());
+                    return null;
+                }
             }
+            Document savedDocument = document == null && !fileDocumentManager.isFileModified(virtualFile)
+                    ? fileDocumentManager.getCachedDocument(virtualFile) : null;
+            // the immutable text of a document is shared, not copied
+            return new FileState(virtualFile, existsOnFilesystem,
+                    document != null ? document.getImmutableCharSequence() : null,
+                    savedDocument != null ? savedDocument.getImmutableCharSequence() : null,
+                    CodeStyle.getSettings(project).getLineSeparator());
         }
-        tempFileOut.flush();
-        tempFileOut.close();
-    }
-
-    @NotNull
-    private Charset charSetOf(final PsiFile file) {
-        return virtualFileOf(file).map(VirtualFile::getCharset).orElse(StandardCharsets.UTF_8);
-    }
-
-    private Optional<VirtualFile> virtualFileOf(final PsiFile file) {
-        return ofNullable(file.getVirtualFile());
-    }
-
-    @NotNull
-    private Writer writerTo(final File outFile, final Charset charset) throws FileNotFoundException {
-        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), charset.newEncoder()));
     }
 
     public File getFile() {
@@ -255,44 +273,65 @@ public class ScannableFile {
 
     public static void deleteIfRequired(@Nullable final ScannableFile scannableFile) {
         if (scannableFile != null) {
-            scannableFile.deleteFileIfRequired();
+            scannableFile.releaseSnapshot();
         }
     }
 
-    private void deleteFileIfRequired() {
-        if (baseTempDir != null && baseTempDir.getName().startsWith(TEMPFILE_DIR_PREFIX)) {
-            delete(baseTempDir);
+    private void releaseSnapshot() {
+        if (snapshot != null && released.compareAndSet(false, true)) {
+            snapshotStoreOf(project).release(snapshot);
         }
     }
 
-    private void delete(@NotNull final File file) {
-        if (!file.exists()) {
-            return;
-        }
-
-        if (file.isDirectory()) {
-            final File[] files = file.listFiles();
-            if (files != null) {
-                for (File child : files) {
-                    delete(child);
-                }
-            }
-        }
-
-        //noinspection ResultOfMethodCallIgnored
-        file.delete();
+    private static SnapshotStore snapshotStoreOf(final Project project) {
+        return project.getService(MypyPlugin.class).getSnapshotStore();
     }
 
     public String getAbsolutePath() {
         return realFile.getAbsolutePath();
     }
 
-    public PsiFile getPsiFile() {
-        return psiFile;
+    /**
+     * The snapshot Mypy reads instead of {@link #getAbsolutePath()} ({@code --shadow-file}).
+     *
+     * @return the absolute path of the shadow file, or null if the file is checked as is.
+     */
+    @Nullable
+    public String getShadowPath() {
+        return shadowFile != null ? shadowFile.getAbsolutePath() : null;
+    }
+
+    /**
+     * The scanned file, whose PSI is only needed to map the issues Mypy reports.
+     *
+     * @return the virtual file.
+     */
+    public VirtualFile getVirtualFile() {
+        return virtualFile;
+    }
+
+    /**
+     * The path of the file in the project, which differs from {@link #getAbsolutePath()} for a snapshot.
+     *
+     * @return the path of the virtual file.
+     */
+    public String getSourcePath() {
+        return virtualFile.getPath();
+    }
+
+    /**
+     * The hash of the content that is checked, taken when this file was created: the content of the document for a
+     * snapshot, otherwise the time stamp and length of the file on disk.
+     *
+     * @return the content hash.
+     */
+    public String getContentHash() {
+        return contentHash;
     }
 
     @Override
     public String toString() {
-        return String.format("[ScannableFile: file=%s; temporary=%s]", realFile.toString(), baseTempDir != null);
+        return String.format("[ScannableFile: file=%s; snapshot=%s; shadow=%s]", realFile.toString(),
+                snapshot != null, shadowFile);
     }
 }
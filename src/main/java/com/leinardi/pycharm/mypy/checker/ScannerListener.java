@@ -16,6 +16,7 @@
 
 package com.leinardi.pycharm.mypy.checker;
 
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.leinardi.pycharm.mypy.exception.MypyPluginException;
 
@@ -24,10 +25,17 @@ import java.util.Map;
 
 public interface ScannerListener {
 
-    void scanStarting(List<PsiFile> filesToScan);
+    void scanStarting(List<VirtualFile> filesToScan);
 
     void filesScanned(int count);
 
+    /**
+     * Called while the scan is still running, every time a batch of problems has been mapped to its files.
+     *
+     * @param problems the problems of the batch, by file.
+     */
+    void problemsFound(Map<PsiFile, List<Problem>> problems);
+
     void scanCompletedSuccessfully(
             Map<PsiFile, List<Problem>> scanResults);
 
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileDocumentManagerListener;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.ShutDownTracker;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.leinardi.pycharm.mypy.util.TempDirProvider;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Project-level store of the snapshots of the files Mypy can't read from disk (unsaved or not on the local file
+ * system).
+ * <p>
+ * A file keeps the same snapshot from one check to the next: it is rewritten in place only when the content hash
+ * changes, with a single bulk write of the encoded content. Concurrent checks of different contents of a file get
+ * additional snapshots, deleted once released. The snapshot of a file is dropped once the file is saved or closed.
+ * The snapshots live in the shared memory file system on Linux (see {@link TempDirProvider#forSnapshots}) and are
+ * deleted in the background when the project is closed, or at the latest when the IDE exits.
+ */
+public class SnapshotStore implements Disposable {
+    private static final Logger LOG = Logger.getInstance(SnapshotStore.class);
+
+    private static final String SNAPSHOT_DIR_PREFIX = "mypy-snapshots-";
+    private static final String EXTERNAL_DIR_NAME = "external";
+
+    private final Project project;
+    private final Map<String, List<Snapshot>> snapshotsBySource = new HashMap<>();
+    private final Set<File> rootDirs = new HashSet<>();
+    // the background deletion may not run when the IDE exits
+    private final Runnable deleteOnExit = this::deleteRootDirs;
+    private int additionalSnapshotCount;
+
+    public SnapshotStore(@NotNull final Project project, @NotNull final Disposable parentDisposable) {
+        this.project = project;
+        Disposer.register(parentDisposable, this);
+        ShutDownTracker.getInstance().registerShutdownTask(deleteOnExit);
+
+        ApplicationManager.getApplication().getMessageBus().connect(this).subscribe(FileDocumentManagerListener.TOPIC,
+                new FileDocumentManagerListener() {
+                    @Override
+                    public void beforeDocumentSaving(@NotNull final Document document) {
+                        final VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+                        if (file != null) {
+                            dropInBackground(file.getPath());
+                        }
+                    }
+                });
+        project.getMessageBus().connect(this).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER,
+                new FileEditorManagerListener() {
+                    @Override
+                    public void fileClosed(@NotNull final FileEditorManager source, @NotNull final VirtualFile file) {
+                        dropInBackground(file.getPath());
+                    }
+                });
+    }
+
+    /**
+     * A snapshot of the content of a file, used by the checks which acquired it until they release it.
+     */
+    public static final class Snapshot {
+        private final String sourcePath;
+        private final File file;
+        private final boolean primary;
+        @Nullable
+        private String contentHash;
+        private int users;
+        private boolean dropped;
+
+        private Snapshot(final String sourcePath, final File file, final boolean primary) {
+            this.sourcePath = sourcePath;
+            this.file = file;
+            this.primary = primary;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * The snapshot of the current content of a file, written only if the content changed since the last snapshot.
+     * <p>
+     * This doesn't need read access: the content is taken from the document beforehand.
+     *
+     * @param virtualFile   the file.
+     * @param content       the current content of the file, as in its document.
+     * @param charset       the charset of the file.
+     * @param bom           the byte order mark of the file on disk, if any.
+     * @param lineSeparator the line separator of the file on disk.
+     * @param contentHash   the hash of the current content of the file.
+     * @return the snapshot, to {@link #release} when the check completes.
+     * @throws IOException if the snapshot can't be written.
+     */
+    public Snapshot acquire(@NotNull final VirtualFile virtualFile, @NotNull final CharSequence content,
+                            @NotNull final Charset charset, @Nullable final byte[] bom,
+                            @NotNull final String lineSeparator, @NotNull final String contentHash)
+            throws IOException {
+        final String sourcePath = virtualFile.getPath();
+        Snapshot snapshot;
+        synchronized (snapshotsBySource) {
+            List<Snapshot> variants = snapshotsBySource.computeIfAbsent(sourcePath, key -> new ArrayList<>());
+            for (Snapshot variant : variants) {
+                if (contentHash.equals(variant.contentHash) && variant.file.isFile()) {
+                    variant.users++;
+                    return variant;
+                }
+            }
+            snapshot = variants.stream().filter(variant -> variant.users == 0).findFirst().orElse(null);
+            if (snapshot == null) {
+                // the additional snapshots never reuse a directory, which may still be deleted in the background
+                boolean primary = variants.isEmpty();
+                snapshot = new Snapshot(sourcePath,
+                        snapshotFileFor(virtualFile, primary ? 0 : ++additionalSnapshotCount), primary);
+                variants.add(snapshot);
+            }
+            // nobody can share the snapshot until it is written
+            snapshot.contentHash = null;
+            snapshot.users++;
+        }
+
+        try {
+            write(content, charset, bom, lineSeparator, snapshot.file);
+        } catch (IOException | RuntimeException e) {
+            release(snapshot);
+            throw e;
+        }
+        synchronized (snapshotsBySource) {
+            snapshot.contentHash = contentHash;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Release a snapshot acquired by a check. The additional snapshots of a file are deleted in the background, the
+     * primary snapshot only once dropped (see {@link #drop}).
+     *
+     * @param snapshot the snapshot.
+     */
+    public void release(@NotNull final Snapshot snapshot) {
+        synchronized (snapshotsBySource) {
+            snapshot.users--;
+            if (snapshot.users > 0 || snapshot.primary && !snapshot.dropped) {
+                return;
+            }
+            List<Snapshot> variants = snapshotsBySource.get(snapshot.sourcePath);
+            if (variants == null || !variants.remove(snapshot)) {
+                return;
+            }
+            if (variants.isEmpty()) {
+                snapshotsBySource.remove(snapshot.sourcePath);
+            }
+            if (snapshot.primary) {
+                // deleted in the lock: a new primary snapshot of the file may be written to the same path
+                delete(snapshot.file);
+                return;
+            }
+        }
+        deleteInBackground(snapshot.file);
+    }
+
+    /**
+     * Drop the snapshots of a file which no check needs any more, e.g. once the file is saved: the snapshots in use
+     * are deleted when released.
+     *
+     * @param sourcePath the path of the file in the project.
+     */
+    public void drop(@NotNull final String sourcePath) {
+        synchronized (snapshotsBySource) {
+            final List<Snapshot> variants = snapshotsBySource.get(sourcePath);
+            if (variants == null) {
+                return;
+            }
+            for (Iterator<Snapshot> iterator = variants.iterator(); iterator.hasNext(); ) {
+                final Snapshot variant = iterator.next();
+                variant.dropped = true;
+                if (variant.users == 0) {
+                    iterator.remove();
+                    // deleted in the lock: a new snapshot of the file may be written to the same path
+                    delete(variant.file);
+                }
+            }
+            if (variants.isEmpty()) {
+                snapshotsBySource.remove(sourcePath);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void dispose() {
+        final List<File> rootDirsToDelete;
+        synchronized (snapshotsBySource) {
+            snapshotsBySource.clear();
+            rootDirsToDelete = new ArrayList<>(rootDirs);
+            rootDirs.clear();
+        }
+        final ShutDownTracker shutDownTracker = ShutDownTracker.getInstance();
+        shutDownTracker.unregisterShutdownTask(deleteOnExit);
+        if (rootDirsToDelete.isEmpty()) {
+            return;
+        }
+        final Runnable deleteRootDirsOnExit = () -> rootDirsToDelete.forEach(SnapshotStore::delete);
+        shutDownTracker.registerShutdownTask(deleteRootDirsOnExit);
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            deleteRootDirsOnExit.run();
+            shutDownTracker.unregisterShutdownTask(deleteRootDirsOnExit);
+        });
+    }
+
+    private void deleteRootDirs() {
+        final List<File> rootDirsToDelete;
+        synchronized (snapshotsBySource) {
+            rootDirsToDelete = new ArrayList<>(rootDirs);
+        }
+        rootDirsToDelete.forEach(SnapshotStore::delete);
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void dropInBackground(final String sourcePath) {
+        synchronized (snapshotsBySource) {
+            if (!snapshotsBySource.containsKey(sourcePath)) {
+                return;
+            }
+        }
+        ApplicationManager.getApplication().executeOnPooledThread(() -> drop(sourcePath));
+    }
+
+    private File snapshotFileFor(final VirtualFile virtualFile, final int variant) {
+        File rootDir = new File(new TempDirProvider().forSnapshots(project, virtualFile),
+                SNAPSHOT_DIR_PREFIX + project.getLocationHash());
+        rootDirs.add(rootDir);
+        File variantDir = new File(rootDir, Integer.toString(variant));
+
+        // the snapshot keeps the path of the file relative to the project, so that it maps to the same module name
+        VirtualFile projectDir = ProjectUtil.guessProjectDir(project);
+        String relativePath = projectDir != null
+                ? VfsUtilCore.getRelativePath(virtualFile, projectDir, File.separatorChar) : null;
+        if (relativePath != null) {
+            return new File(variantDir, relativePath);
+        }
+        String parentPath = virtualFile.getParent() != null ? virtualFile.getParent().getPath() : "";
+        return new File(new File(new File(variantDir, EXTERNAL_DIR_NAME), Integer.toHexString(parentPath.hashCode())),
+                virtualFile.getName());
+    }
+
+    private static void write(final CharSequence content, final Charset charset, @Nullable final byte[] bom,
+                              final String lineSeparator, final File snapshotFile) throws IOException {
+        // PyCharm uses \n internally
+        CharSequence text = content;
+        if (!"\n".equals(lineSeparator)) {
+            text = StringUtil.convertLineSeparators(text.toString(), lineSeparator);
+        }
+        // as the editor saves it: the unmappable characters are replaced, and the byte order mark is kept
+        final ByteBuffer[] bytes = {ByteBuffer.wrap(bom != null ? bom : new byte[0]),
+                charset.encode(CharBuffer.wrap(text))};
+
+        FileUtil.createParentDirs(snapshotFile);
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (bytes[1].hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private static void deleteInBackground(final File file) {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> delete(file));
+    }
+
+    private static void delete(final File file) {
+        if (!FileUtil.delete(file)) {
+            LOG.debug("Couldn't delete the snapshot " + file);
+        }
+    }
+}
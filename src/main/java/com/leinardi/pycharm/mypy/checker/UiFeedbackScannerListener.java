@@ -16,6 +16,7 @@
 
 package com.leinardi.pycharm.mypy.checker;
 
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.leinardi.pycharm.mypy.MypyPlugin;
 import com.leinardi.pycharm.mypy.exception.MypyPluginException;
@@ -34,7 +35,7 @@ public class UiFeedbackScannerListener implements ScannerListener {
     }
 
     @Override
-    public void scanStarting(final List<PsiFile> filesToScan) {
+    public void scanStarting(final List<VirtualFile> filesToScan) {
         SwingUtilities.invokeLater(() -> {
             final MypyToolWindowPanel toolWindowPanel = toolWindowPanel();
             if (toolWindowPanel != null) {
@@ -53,6 +54,16 @@ public class UiFeedbackScannerListener implements ScannerListener {
         });
     }
 
+    @Override
+    public void problemsFound(final Map<PsiFile, List<Problem>> problems) {
+        SwingUtilities.invokeLater(() -> {
+            final MypyToolWindowPanel toolWindowPanel = toolWindowPanel();
+            if (toolWindowPanel != null) {
+                toolWindowPanel.displayPartialResults(problems);
+            }
+        });
+    }
+
     @Override
     public void scanCompletedSuccessfully(
             final Map<PsiFile, List<Problem>> scanResults) {
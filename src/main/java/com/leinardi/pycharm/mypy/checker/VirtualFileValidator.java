@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+import com.leinardi.pycharm.mypy.util.FileTypes;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Validates the candidates of a scan with their virtual file and the project index only: neither the PSI nor the
+ * document of a file is loaded.
+ */
+final class VirtualFileValidator {
+
+    private VirtualFileValidator() {
+    }
+
+    public static boolean isScannable(@Nullable final VirtualFile virtualFile, final Project project) {
+        ProjectFileIndex projectFileIndex = ProjectFileIndex.SERVICE.getInstance(project);
+        return virtualFile != null
+                && virtualFile.isValid()
+                && isPhysical(virtualFile)
+                && isInSource(virtualFile, projectFileIndex)
+                && isValidFileType(virtualFile);
+    }
+
+    private static boolean isPhysical(final VirtualFile virtualFile) {
+        return !(virtualFile instanceof LightVirtualFile) && !virtualFile.isDirectory();
+    }
+
+    private static boolean isValidFileType(final VirtualFile virtualFile) {
+        return FileTypes.isPython(virtualFile.getFileType());
+    }
+
+    private static boolean isInSource(final VirtualFile virtualFile, final ProjectFileIndex projectFileIndex) {
+        return !projectFileIndex.isExcluded(virtualFile);
+    }
+
+}
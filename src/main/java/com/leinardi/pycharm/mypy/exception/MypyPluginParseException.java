@@ -19,6 +19,10 @@ package com.leinardi.pycharm.mypy.exception;
 public class MypyPluginParseException extends MypyPluginException {
     private static final long serialVersionUID = -2138216104879079892L;
 
+    public MypyPluginParseException(final String message) {
+        super(message);
+    }
+
     public MypyPluginParseException(final String message, final Throwable cause) {
         super(message, cause);
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import com.leinardi.pycharm.mypy.util.Async;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Mypy (or {@code dmypy} client) process killed, with all its descendants, as soon as the scan running it is
+ * cancelled.
+ * <p>
+ * The reading thread is blocked on the process output and can't notice the cancellation by itself: the process is
+ * killed by a {@link Async#whenCancelled cancellation hook} of the task running the scan, whose future is cancelled
+ * by the callers leaving the scan, or cancelled with their progress indicator. Killing the process closes its
+ * output, which unblocks the reader.
+ */
+final class CancellableProcess implements AutoCloseable {
+    private static final Logger LOG = Logger.getInstance(CancellableProcess.class);
+
+    private static final AtomicLong KILLED_PROCESS_COUNT = new AtomicLong();
+    private static final AtomicLong KILLED_CPU_TIME_MS = new AtomicLong();
+
+    private final Process process;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final Runnable unregisterCancellationHook;
+
+    private CancellableProcess(@NotNull final Process process) {
+        this.process = process;
+        this.unregisterCancellationHook = Async.whenCancelled(this::cancel);
+        if (Thread.currentThread().isInterrupted()) {
+            cancel();
+        }
+    }
+
+    /**
+     * Start a process, killed from now on when the task running on the current thread is cancelled.
+     *
+     * @param cmd the command line of the process.
+     * @return the started process, to close once completed.
+     * @throws ExecutionException if the process can't be started.
+     */
+    static CancellableProcess start(@NotNull final GeneralCommandLine cmd) throws ExecutionException {
+        return new CancellableProcess(cmd.createProcess());
+    }
+
+    Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Throw if the process was killed by a cancellation, in which case its output and exit code are not meaningful.
+     *
+     * @throws InterruptedIOException if the process was cancelled.
+     */
+    void checkCancelled() throws InterruptedIOException {
+        if (cancelled.get()) {
+            throw new InterruptedIOException("Mypy process cancelled");
+        }
+    }
+
+    /**
+     * Kill the process tree, logging the CPU time the killed processes had already used: the time lost to the
+     * cancellation, not the time saved by it, which can't be known.
+     */
+    void cancel() {
+        if (!cancelled.compareAndSet(false, true)) {
+            return;
+        }
+        List<ProcessHandle> processTree = processTree();
+        long cpuTimeMs = processTree.stream()
+                .mapToLong(handle -> handle.info().totalCpuDuration().map(Duration::toMillis).orElse(0L))
+                .sum();
+        processTree.forEach(ProcessHandle::destroyForcibly);
+
+        long killedProcessCount = KILLED_PROCESS_COUNT.addAndGet(processTree.size());
+        long killedCpuTimeMs = KILLED_CPU_TIME_MS.addAndGet(cpuTimeMs);
+        LOG.info("Scan cancelled: killed " + processTree.size() + " Mypy processes, which had used " + cpuTimeMs
+                + " ms of CPU time (" + killedProcessCount + " processes and " + killedCpuTimeMs
+                + " ms of CPU time discarded since startup)");
+    }
+
+    @Override
+    public void close() {
+        unregisterCancellationHook.run();
+        // e.g. the output couldn't be parsed: nobody waits for the process any longer
+        if (process.isAlive()) {
+            processTree().forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    /**
+     * The process and its descendants, the descendants first: they are listed before the process dies and they are
+     * reparented.
+     */
+    private List<ProcessHandle> processTree() {
+        List<ProcessHandle> processTree = new ArrayList<>();
+        process.toHandle().descendants().forEach(processTree::add);
+        processTree.add(process.toHandle());
+        return processTree;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Drains the standard error of a process on a pooled thread while its standard output is parsed, so that the
+ * process never blocks on a full stderr pipe (crash traces, plugin warnings...).
+ * <p>
+ * Only the last {@link #MAX_KEPT_CHARS} characters are kept, to report an abnormal exit: the beginning of a long
+ * output is dropped. The lines are logged at debug level as they are read, and parsed like the standard output:
+ * the issues Mypy reports on its standard error are kept, as well as whether it printed a crash traceback.
+ */
+final class ErrorStreamDrainer {
+    private static final Logger LOG = Logger.getInstance(ErrorStreamDrainer.class);
+
+    static final int MAX_KEPT_CHARS = 64 * 1024;
+    // once the process exited, the stream is only kept open by a descendant which inherited it
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+    private static final String TRACEBACK = "Traceback (most recent call last):";
+
+    private final StringBuilder keptOutput = new StringBuilder();
+    // the parser is only used by the draining thread
+    private final MypyOutputParser parser = new MypyOutputParser(Reader.nullReader());
+    // guarded by keptOutput
+    private final List<Issue> issues = new ArrayList<>();
+    private long droppedChars;
+    private boolean traceback;
+    private Future<?> task;
+
+    private ErrorStreamDrainer() {
+    }
+
+    /**
+     * Start draining a stream.
+     *
+     * @param errorStream the standard error of the process.
+     * @return the drainer of the stream.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    static ErrorStreamDrainer start(@NotNull final InputStream errorStream) {
+        ErrorStreamDrainer drainer = new ErrorStreamDrainer();
+        drainer.task = ApplicationManager.getApplication().executeOnPooledThread(() -> drainer.drain(errorStream));
+        return drainer;
+    }
+
+    /**
+     * The end of the output, once the process exited.
+     *
+     * @return the kept output, preceded by the number of dropped characters if any.
+     */
+    String getOutput() {
+        awaitDrained();
+        synchronized (keptOutput) {
+            return droppedChars > 0
+                    ? "[" + droppedChars + " characters dropped]\n" + keptOutput
+                    : keptOutput.toString();
+        }
+    }
+
+    /**
+     * The issues reported on the standard error, e.g. by some Mypy versions for the errors of the config file.
+     *
+     * @return the issues, once the process exited.
+     */
+    List<Issue> getIssues() {
+        awaitDrained();
+        synchronized (keptOutput) {
+            return new ArrayList<>(issues);
+        }
+    }
+
+    /**
+     * Whether the process printed a Python traceback: Mypy crashed, even if its exit code doesn't tell.
+     *
+     * @return true if a traceback was printed, once the process exited.
+     */
+    boolean hasTraceback() {
+        awaitDrained();
+        synchronized (keptOutput) {
+            return traceback;
+        }
+    }
+
+    /**
+     * Stop draining, e.g. when the process was killed.
+     */
+    void stop() {
+        task.cancel(true);
+    }
+
+    private void awaitDrained() {
+        try {
+            task.get(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (java.util.concurrent.ExecutionException | TimeoutException e) {
+            LOG.debug("Mypy standard error not fully read", e);
+        }
+    }
+
+    private void append(final String line) {
+        final Issue issue = parser.parseLine(line.toCharArray(), line.length());
+        synchronized (keptOutput) {
+            if (issue != null) {
+                issues.add(issue);
+            }
+            traceback |= line.startsWith(TRACEBACK);
+            if (keptOutput.length() > 0) {
+                keptOutput.append('\n');
+            }
+            keptOutput.append(line);
+            int excess = keptOutput.length() - MAX_KEPT_CHARS;
+            if (excess > 0) {
+                keptOutput.delete(0, excess);
+                droppedChars += excess;
+            }
+        }
+    }
+
+    private void drain(final InputStream errorStream) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream, UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LOG.debug("Mypy stderr: " + line);
+                append(line);
+            }
+        } catch (IOException e) {
+            // the process was killed
+            LOG.debug("Mypy standard error closed", e);
+        }
+    }
+}
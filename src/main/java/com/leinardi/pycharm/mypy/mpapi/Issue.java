@@ -16,6 +16,8 @@
 
 package com.leinardi.pycharm.mypy.mpapi;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.Objects;
 
 /**
@@ -29,13 +31,24 @@ public class Issue {
     private final int column;
     private final SeverityLevel severityLevel;
     private final String message;
+    @Nullable
+    private final String code;
+    @Nullable
+    private final String hint;
 
     public Issue(String path, int line, int column, SeverityLevel severityLevel, String message) {
+        this(path, line, column, severityLevel, message, null, null);
+    }
+
+    public Issue(String path, int line, int column, SeverityLevel severityLevel, String message,
+                 @Nullable String code, @Nullable String hint) {
         this.path = path;
         this.line = line;
         this.column = column;
         this.severityLevel = severityLevel;
         this.message = message;
+        this.code = code;
+        this.hint = hint;
     }
 
     public String getPath() {
@@ -58,6 +71,36 @@ public class Issue {
         return message;
     }
 
+    /**
+     * The Mypy error code (e.g. {@code arg-type}). Only available with the JSON output format.
+     *
+     * @return the error code, or null if unknown.
+     */
+    @Nullable
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * The notes attached to this issue. Only available with the JSON output format.
+     *
+     * @return the hint, or null if there is none.
+     */
+    @Nullable
+    public String getHint() {
+        return hint;
+    }
+
+    /**
+     * A copy of this issue reported for another file.
+     *
+     * @param path the path of the file.
+     * @return the copy of the issue.
+     */
+    public Issue withPath(final String path) {
+        return new Issue(path, line, column, severityLevel, message, code, hint);
+    }
+
     @Override
     public String toString() {
         return "Issue{" +
@@ -66,6 +109,8 @@ public class Issue {
                 ", column=" + column +
                 ", severityLevel=" + severityLevel +
                 ", message='" + message + '\'' +
+                ", code='" + code + '\'' +
+                ", hint='" + hint + '\'' +
                 '}';
     }
 
@@ -82,11 +127,13 @@ public class Issue {
                 column == issue.column &&
                 Objects.equals(path, issue.path) &&
                 severityLevel == issue.severityLevel &&
-                Objects.equals(message, issue.message);
+                Objects.equals(message, issue.message) &&
+                Objects.equals(code, issue.code) &&
+                Objects.equals(hint, issue.hint);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(path, line, column, severityLevel, message);
+        return Objects.hash(path, line, column, severityLevel, message, code, hint);
     }
 }
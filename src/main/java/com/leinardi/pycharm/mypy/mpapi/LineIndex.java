@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The line start offsets of a text, built with a single scan, so that a (line, column) position is converted to an
+ * offset without copying or re-scanning the text.
+ * <p>
+ * Lines are terminated by LF, CR or CRLF. Line lookups are O(1); column lookups are O(1) too, except on lines
+ * containing tabs, where the columns are walked up to the requested one to honour the tab stops.
+ */
+final class LineIndex {
+    private static final int INITIAL_LINES = 256;
+
+    private final CharSequence text;
+    private final int tabWidth;
+    private final int[] lineStarts;
+    private final int lineCount;
+    private final BitSet linesWithTabs = new BitSet();
+
+    private LineIndex(final CharSequence text, final int tabWidth) {
+        this.text = text;
+        this.tabWidth = tabWidth;
+
+        int[] starts = new int[INITIAL_LINES];
+        int count = 1;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c == '\t') {
+                linesWithTabs.set(count - 1);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        this.lineStarts = starts;
+        this.lineCount = count;
+    }
+
+    /**
+     * Index the lines of {@code text}.
+     *
+     * @param text     the text, which is not copied and must not change while the index is in use.
+     * @param tabWidth the distance between tab stops, or a value lower than 2 to count a tab as a single column.
+     * @return the line index.
+     */
+    @NotNull
+    static LineIndex of(@NotNull final CharSequence text, final int tabWidth) {
+        return new LineIndex(text, tabWidth);
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @param line the 1-based line number.
+     * @return the offset of the first character of the line.
+     */
+    int getLineStartOffset(final int line) {
+        return lineStarts[line - 1];
+    }
+
+    /**
+     * @param line the 1-based line number.
+     * @return the offset of the line terminator, or the text length for the last line.
+     */
+    int getLineEndOffset(final int line) {
+        int end = line < lineCount ? lineStarts[line] : text.length();
+        if (line < lineCount) {
+            end--;
+            if (end > lineStarts[line - 1] && text.charAt(end) == '\n' && text.charAt(end - 1) == '\r') {
+                end--;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Convert a 0-based column of a line to an offset, clamped to the end of the line.
+     *
+     * @param line   the 1-based line number, between 1 and {@link #getLineCount()}.
+     * @param column the 0-based column, with tabs expanded to the next tab stop.
+     * @return the offset of the column.
+     */
+    int getOffset(final int line, final int column) {
+        final int start = getLineStartOffset(line);
+        final int end = getLineEndOffset(line);
+        if (tabWidth < 2 || !linesWithTabs.get(line - 1)) {
+            return Math.min(start + Math.max(column, 0), end);
+        }
+
+        int offset = start;
+        int visualColumn = 0;
+        while (offset < end && visualColumn < column) {
+            if (text.charAt(offset) == '\t') {
+                visualColumn += tabWidth - visualColumn % tabWidth;
+            } else {
+                visualColumn++;
+            }
+            offset++;
+        }
+        return offset;
+    }
+}
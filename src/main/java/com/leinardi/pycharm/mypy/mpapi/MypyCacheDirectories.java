@@ -0,0 +1,239 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.io.FileUtil;
+import com.leinardi.pycharm.mypy.util.Hashes;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * The Mypy cache directories ({@code --cache-dir}) managed by the plugin in the IDE system directory.
+ * <p>
+ * A project gets one cache directory per interpreter, Mypy executable and config file, so that the scans of the
+ * project share a warm cache whatever the files they check (temporary copies included) and nothing is written to
+ * the project directory. The directories are evicted when unused for {@link #MAX_AGE_MS}, the least recently used
+ * first when all of them exceed {@link #MAX_TOTAL_SIZE}, except the ones of the open projects.
+ * <p>
+ * Concurrent Mypy processes must not write to the same cache directory: a process {@link #lease(File) leases} its
+ * directory while it runs, and a process wanting a leased directory gets a {@code concurrent-n} subdirectory instead.
+ */
+public final class MypyCacheDirectories {
+    static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+    static final long MAX_TOTAL_SIZE = 4L * 1024 * 1024 * 1024;
+    static final long EVICTION_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Logger LOG = Logger.getInstance(MypyCacheDirectories.class);
+    private static final String CACHE_DIR_NAME = "cache";
+    private static final String SHARD_DIR_PREFIX = "shard-";
+    private static final String CONCURRENT_DIR_PREFIX = "concurrent-";
+    // the paths of the directories used by a running Mypy process
+    private static final Set<String> LEASED_DIRS = new HashSet<>();
+    private static final AtomicLong LAST_EVICTION = new AtomicLong();
+
+    private MypyCacheDirectories() {
+    }
+
+    /**
+     * The cache directory for the scans of a project with an execution profile, marked as used.
+     *
+     * @param project        the current project.
+     * @param profile        the execution profile of the scan.
+     * @param configFilePath the Mypy config file passed to Mypy, or null.
+     * @return the cache directory, which Mypy creates if it doesn't exist yet.
+     */
+    static File getCacheDir(@NotNull final Project project, @NotNull final MypyExecutionProfile profile,
+                            @Nullable final String configFilePath) {
+        String key = Hashes.hash(Objects.toString(profile.getInterpreterPath(), ""), profile.getMypyPath(),
+                Objects.toString(configFilePath, ""));
+        File cacheDir = new File(getCacheRoot(), project.getLocationHash() + "-" + key);
+        if (cacheDir.isDirectory() && !cacheDir.setLastModified(System.currentTimeMillis())) {
+            LOG.debug("Can't mark the Mypy cache as used: " + cacheDir);
+        }
+        return cacheDir;
+    }
+
+    /**
+     * The cache directory of one of the concurrent processes of a scan, reused by the same process in the next scans.
+     *
+     * @param cacheDir the cache directory of the scan.
+     * @param shardKey the key of the files checked by the process, stable from one scan to the next.
+     * @return the cache directory of the process.
+     */
+    static File getShardCacheDir(@NotNull final File cacheDir, @NotNull final String shardKey) {
+        return new File(cacheDir, SHARD_DIR_PREFIX + shardKey);
+    }
+
+    /**
+     * Lease a cache directory for a Mypy process, until the lease is closed: the directory itself if no running
+     * process uses it, else the first {@code concurrent-n} subdirectory which no running process uses.
+     *
+     * @param cacheDir the cache directory wanted by the process.
+     * @return the lease of the directory the process must use.
+     */
+    static Lease lease(@NotNull final File cacheDir) {
+        synchronized (LEASED_DIRS) {
+            File dir = cacheDir;
+            for (int concurrent = 1; !LEASED_DIRS.add(dir.getPath()); concurrent++) {
+                dir = new File(cacheDir, CONCURRENT_DIR_PREFIX + concurrent);
+            }
+            return new Lease(dir);
+        }
+    }
+
+    /**
+     * Delete the cache directories of a project. The next scans are cold.
+     *
+     * @param project the current project.
+     * @return the freed disk space in bytes.
+     */
+    public static long clear(@NotNull final Project project) {
+        long freed = 0;
+        for (File cacheDir : getProjectCacheDirs(project)) {
+            freed += sizeOf(cacheDir);
+            FileUtil.delete(cacheDir);
+        }
+        LOG.info("Cleared the Mypy cache of " + project.getName() + ", " + freed + " bytes");
+        return freed;
+    }
+
+    /**
+     * Evict the cache directories of every project which are unused for too long or exceed the size limit, at most
+     * once per {@link #EVICTION_INTERVAL_MS}. The directories of the open projects are kept. Walks the cache
+     * directories: to be called on a pooled thread.
+     */
+    public static void evict() {
+        long now = System.currentTimeMillis();
+        long last = LAST_EVICTION.get();
+        if (now - last < EVICTION_INTERVAL_MS || !LAST_EVICTION.compareAndSet(last, now)) {
+            return;
+        }
+        Set<String> openProjectPrefixes = new HashSet<>();
+        for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+            openProjectPrefixes.add(project.getLocationHash() + "-");
+        }
+        long freed = evict(getCacheRoot(), now, MAX_AGE_MS, MAX_TOTAL_SIZE,
+                cacheDir -> isInUse(cacheDir, openProjectPrefixes));
+        if (freed > 0) {
+            LOG.info("Evicted " + freed + " bytes of Mypy cache");
+        }
+    }
+
+    /**
+     * Delete the cache directories last used before {@code maxAgeMs}, then the least recently used ones until the
+     * remaining directories fit in {@code maxTotalSize}. The directories in use are kept, and counted in the size.
+     *
+     * @return the freed disk space in bytes.
+     */
+    static long evict(final File cacheRoot, final long now, final long maxAgeMs, final long maxTotalSize,
+                      final Predicate<File> inUse) {
+        File[] cacheDirs = cacheRoot.listFiles(File::isDirectory);
+        if (cacheDirs == null) {
+            return 0;
+        }
+        // the most recently used first
+        Arrays.sort(cacheDirs, Comparator.comparingLong(File::lastModified).reversed());
+        long freed = 0;
+        long totalSize = 0;
+        for (File cacheDir : cacheDirs) {
+            long size = sizeOf(cacheDir);
+            if ((now - cacheDir.lastModified() > maxAgeMs || totalSize + size > maxTotalSize)
+                    && !inUse.test(cacheDir) && FileUtil.delete(cacheDir)) {
+                freed += size;
+                continue;
+            }
+            totalSize += size;
+        }
+        return freed;
+    }
+
+    private static boolean isInUse(final File cacheDir, final Set<String> openProjectPrefixes) {
+        String name = cacheDir.getName();
+        if (openProjectPrefixes.stream().anyMatch(name::startsWith)) {
+            return true;
+        }
+        // a Mypy process writing to it, whatever its project
+        String path = cacheDir.getPath();
+        synchronized (LEASED_DIRS) {
+            return LEASED_DIRS.stream().anyMatch(leased -> leased.equals(path)
+                    || leased.startsWith(path + File.separator));
+        }
+    }
+
+    private static long sizeOf(final File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    private static List<File> getProjectCacheDirs(final Project project) {
+        String prefix = project.getLocationHash() + "-";
+        File[] cacheDirs = getCacheRoot().listFiles(file -> file.isDirectory() && file.getName().startsWith(prefix));
+        return cacheDirs != null ? Arrays.asList(cacheDirs) : new ArrayList<>();
+    }
+
+    /**
+     * The lease of a cache directory by a running Mypy process.
+     */
+    static final class Lease implements AutoCloseable {
+        private final File dir;
+
+        private Lease(final File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * @return the cache directory the process must use.
+         */
+        File getDir() {
+            return dir;
+        }
+
+        @Override
+        public void close() {
+            synchronized (LEASED_DIRS) {
+                LEASED_DIRS.remove(dir.getPath());
+            }
+        }
+    }
+
+    private static File getCacheRoot() {
+        return new File(new File(PathManager.getSystemPath(), MypyRunner.SYSTEM_DIR_NAME), CACHE_DIR_NAME);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.leinardi.pycharm.mypy.exception.MypyToolException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A project-level mypy daemon ({@code dmypy}) server.
+ * <p>
+ * The server is started lazily by the first check, health-checked with {@code dmypy status} before being reused
+ * and restarted if it died or if the mypy arguments changed. It is stopped when the owning
+ * {@link com.leinardi.pycharm.mypy.MypyPlugin} is disposed.
+ * <p>
+ * The checks are serialized with each other, but the state of the server is only locked to be read or replaced:
+ * {@link #stop()}, called on the EDT when the settings change, never waits for a check or a client command.
+ */
+public class MypyDaemon {
+    private static final Logger LOG = Logger.getInstance(MypyDaemon.class);
+    private static final String STATUS_FILE_NAME = "dmypy.json";
+    private static final long COMMAND_TIMEOUT_SECONDS = 10;
+
+    private final Project project;
+    private final File statusFile;
+    private final Object checkLock = new Object();
+
+    /**
+     * The running server, or null if no server was started. Guarded by {@code this}.
+     */
+    @Nullable
+    private Server server;
+    /**
+     * Incremented by every {@link #stop()}, telling a check in progress that its server is stale. Guarded by
+     * {@code this}.
+     */
+    private long generation;
+
+    public MypyDaemon(@NotNull final Project project) {
+        this.project = project;
+        this.statusFile = new File(MypyRunner.getProjectSystemDir(project), STATUS_FILE_NAME);
+    }
+
+    /**
+     * Check the given files with the daemon, starting or restarting the server if needed.
+     *
+     * @param profile       the execution profile; the {@code dmypy} client is expected next to its mypy executable.
+     * @param mypyArguments the mypy arguments the server must run with.
+     * @param filesToScan   the files to check.
+     * @param issueConsumer notified of every issue as soon as the daemon reports it.
+     * @return the issues reported by the daemon.
+     */
+    public List<Issue> check(@NotNull final MypyExecutionProfile profile,
+                             @NotNull final List<String> mypyArguments,
+                             @NotNull final Set<String> filesToScan,
+                             @NotNull final Consumer<Issue> issueConsumer)
+            throws InterruptedIOException, InterruptedException {
+        synchronized (checkLock) {
+            final Server current;
+            final long checkGeneration;
+            synchronized (this) {
+                current = server;
+                checkGeneration = generation;
+            }
+            final Server wanted = new Server(profile, MypyRunner.getDaemonPath(profile.getMypyPath()), mypyArguments);
+            GeneralCommandLine cmd;
+            if (isRunning(current, wanted)) {
+                cmd = newCommandLine(wanted, "check");
+            } else {
+                // `dmypy run` starts the server (or restarts it when the arguments changed) before checking
+                cmd = newCommandLine(wanted, "run");
+                cmd.addParameter("--");
+                cmd.addParameters(mypyArguments);
+            }
+            // unlike mypy, on the command line whatever their number: see the limit in the daemon setting tooltip
+            cmd.addParameters(new ArrayList<>(filesToScan));
+
+            try {
+                List<Issue> issues = MypyRunner.runCommand(project, cmd, false, issueConsumer);
+                ran(checkGeneration, wanted);
+                return issues;
+            } catch (MypyToolException e) {
+                // the server may have crashed while checking: make sure the next check restarts it
+                ran(checkGeneration, null);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stop the server, if one was started: it is marked as stale and the client commands are run on a pooled
+     * thread. A check in progress completes, then stops the server it ran with.
+     */
+    public void stop() {
+        final Server stopped;
+        synchronized (this) {
+            stopped = server;
+            server = null;
+            generation++;
+        }
+        if (stopped != null) {
+            stopInBackground(stopped);
+        }
+    }
+
+    private void ran(final long checkGeneration, @Nullable final Server ranServer) {
+        synchronized (this) {
+            if (generation == checkGeneration) {
+                server = ranServer;
+                return;
+            }
+        }
+        // stopped during the check
+        if (ranServer != null) {
+            stopInBackground(ranServer);
+        }
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private void stopInBackground(final Server stopped) {
+        final GeneralCommandLine stopCmd = newCommandLine(stopped, "stop");
+        final GeneralCommandLine killCmd = newCommandLine(stopped, "kill");
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            if (execute(stopCmd) != 0) {
+                execute(killCmd);
+            }
+        });
+    }
+
+    /**
+     * Whether the current server can check for the wanted one, killing it when it can't be reused. Runs the client
+     * commands outside of the state lock.
+     */
+    private boolean isRunning(@Nullable final Server current, final Server wanted) {
+        if (current == null) {
+            return false;
+        }
+        if (!current.profile.equals(wanted.profile)) {
+            // different interpreter, executable or environment: the old server must not be reused
+            execute(newCommandLine(current, "kill"));
+            return false;
+        }
+        if (!current.mypyArguments.equals(wanted.mypyArguments)) {
+            return false;
+        }
+        if (execute(newCommandLine(wanted, "status")) != 0) {
+            LOG.info("Mypy daemon is not responding, restarting it");
+            execute(newCommandLine(wanted, "kill"));
+            return false;
+        }
+        return true;
+    }
+
+    private GeneralCommandLine newCommandLine(final Server target, final String command) {
+        File statusDir = statusFile.getParentFile();
+        if (!statusDir.exists() && !statusDir.mkdirs()) {
+            LOG.warn("Unable to create the mypy daemon status directory " + statusDir);
+        }
+        GeneralCommandLine cmd = target.profile.newCommandLine(target.dmypyPath);
+        cmd.addParameter("--status-file");
+        cmd.addParameter(statusFile.getAbsolutePath());
+        cmd.addParameter(command);
+        return cmd;
+    }
+
+    private static int execute(final GeneralCommandLine cmd) {
+        try {
+            Process process = cmd.withRedirectErrorStream(true).createProcess();
+            process.getOutputStream().close();
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            if (!process.waitFor(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                LOG.warn("Mypy daemon command timed out: " + cmd.getCommandLineString());
+                return -1;
+            }
+            return process.exitValue();
+        } catch (ExecutionException | IOException e) {
+            LOG.warn("Error while running mypy daemon command: " + cmd.getCommandLineString(), e);
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /**
+     * The execution profile, the client executable and the mypy arguments of a server.
+     */
+    private static final class Server {
+        private final MypyExecutionProfile profile;
+        private final String dmypyPath;
+        private final List<String> mypyArguments;
+
+        Server(final MypyExecutionProfile profile, final String dmypyPath, final List<String> mypyArguments) {
+            this.profile = profile;
+            this.dmypyPath = dmypyPath;
+            this.mypyArguments = mypyArguments;
+        }
+    }
+}
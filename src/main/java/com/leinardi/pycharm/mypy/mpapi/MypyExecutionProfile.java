@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Everything needed to launch Mypy for a project, resolved once per settings generation and project SDK: the
+ * interpreter, the Mypy executable, the environment (including the virtualenv variables) and the work directory.
+ *
+ * @see MypyProbeCache#getExecutionProfile()
+ */
+public final class MypyExecutionProfile {
+    private static final String ENV_KEY_PYTHONUTF8 = "PYTHONUTF8";
+
+    @Nullable
+    private final String interpreterPath;
+    private final String mypyPath;
+    private final Map<String, String> environment;
+    @Nullable
+    private final String workDirectory;
+
+    MypyExecutionProfile(@Nullable final String interpreterPath,
+                         @NotNull final String mypyPath,
+                         @NotNull final Map<String, String> environment,
+                         @Nullable final String workDirectory) {
+        this.interpreterPath = interpreterPath;
+        this.mypyPath = mypyPath;
+        this.environment = Collections.unmodifiableMap(environment);
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * @return the path of the project interpreter, or null if there is none.
+     */
+    @Nullable
+    public String getInterpreterPath() {
+        return interpreterPath;
+    }
+
+    /**
+     * @return the configured or detected Mypy executable, or an empty string if none was found.
+     */
+    @NotNull
+    public String getMypyPath() {
+        return mypyPath;
+    }
+
+    @NotNull
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    @Nullable
+    public String getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Create a command line running {@code exePath} with the environment and the work directory of this profile.
+     *
+     * @param exePath the executable to run.
+     * @return the new command line.
+     */
+    @NotNull
+    public GeneralCommandLine newCommandLine(@NotNull final String exePath) {
+        GeneralCommandLine cmd = new GeneralCommandLine(exePath);
+        cmd.setCharset(UTF_8);
+        cmd.withEnvironment(environment);
+        // the Python UTF-8 mode: the output and the argument files are read and written as UTF-8 on every platform
+        cmd.withEnvironment(ENV_KEY_PYTHONUTF8, "1");
+        cmd.setWorkDirectory(workDirectory);
+        return cmd;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        MypyExecutionProfile that = (MypyExecutionProfile) o;
+        return Objects.equals(interpreterPath, that.interpreterPath)
+                && mypyPath.equals(that.mypyPath)
+                && environment.equals(that.environment)
+                && Objects.equals(workDirectory, that.workDirectory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(interpreterPath, mypyPath, environment, workDirectory);
+    }
+}
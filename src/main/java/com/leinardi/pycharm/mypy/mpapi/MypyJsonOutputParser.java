@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Parser of the Mypy JSON output ({@code --output json}, Mypy 1.11+), made of one JSON object per diagnostic:
+ * <pre>
+ * {"file": "a.py", "line": 1, "column": 4, "message": "...", "hint": null, "code": "arg-type", "severity": "error"}
+ * </pre>
+ * Each object is read with a streaming {@link JsonReader} as soon as its line is complete. Lines that are not JSON
+ * objects are ignored.
+ * <p>
+ * To display the same problems as the text format, the error code is appended to the message and every hint line is
+ * reported as an additional note at the same position.
+ */
+final class MypyJsonOutputParser {
+    private static final Logger LOG = Logger.getInstance(MypyJsonOutputParser.class);
+    private static final int DEFAULT_LINE = 1;
+    private static final int DEFAULT_COLUMN = 1;
+
+    private final BufferedReader reader;
+
+    MypyJsonOutputParser(final Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    /**
+     * Read the whole output, passing each issue to {@code issueConsumer} as soon as its object is complete.
+     *
+     * @param issueConsumer notified of every parsed issue.
+     * @throws IOException if reading fails.
+     */
+    void parse(final Consumer<Issue> issueConsumer) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("{")) {
+                continue;
+            }
+            try {
+                parseObject(line, issueConsumer);
+            } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                LOG.debug("Skipping malformed Mypy JSON output: " + line, e);
+            }
+        }
+    }
+
+    private static void parseObject(final String json, final Consumer<Issue> issueConsumer) throws IOException {
+        String file = null;
+        int line = -1;
+        int column = -1;
+        String message = null;
+        String hint = null;
+        String code = null;
+        String severity = null;
+
+        try (JsonReader jsonReader = new JsonReader(new StringReader(json))) {
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case "file":
+                        file = nextNullableString(jsonReader);
+                        break;
+                    case "line":
+                        line = jsonReader.nextInt();
+                        break;
+                    case "column":
+                        column = jsonReader.nextInt();
+                        break;
+                    case "message":
+                        message = nextNullableString(jsonReader);
+                        break;
+                    case "hint":
+                        hint = nextNullableString(jsonReader);
+                        break;
+                    case "code":
+                        code = nextNullableString(jsonReader);
+                        break;
+                    case "severity":
+                        severity = nextNullableString(jsonReader);
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                        break;
+                }
+            }
+            jsonReader.endObject();
+        }
+
+        if (file == null || message == null || severity == null) {
+            return;
+        }
+        SeverityLevel severityLevel = SeverityLevel.valueOf(severity.toUpperCase(Locale.ROOT));
+        // the JSON column is already 0-based; the defaults match the ones of the text output parsing
+        int issueLine = line >= 0 ? line : DEFAULT_LINE;
+        int issueColumn = column >= 0 ? column : DEFAULT_COLUMN;
+        String displayedMessage = code != null ? message + "  [" + code + "]" : message;
+        issueConsumer.accept(new Issue(file, issueLine, issueColumn, severityLevel, displayedMessage, code, hint));
+
+        if (hint != null) {
+            for (String note : hint.split("\\n")) {
+                if (!note.isBlank()) {
+                    issueConsumer.accept(new Issue(file, issueLine, issueColumn, SeverityLevel.NOTE, note.trim()));
+                }
+            }
+        }
+    }
+
+    private static String nextNullableString(final JsonReader jsonReader) throws IOException {
+        if (jsonReader.peek() == JsonToken.NULL) {
+            jsonReader.nextNull();
+            return null;
+        }
+        return jsonReader.nextString();
+    }
+}
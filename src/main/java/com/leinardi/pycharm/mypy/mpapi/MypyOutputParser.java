@@ -0,0 +1,231 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Single-pass parser of the Mypy text output.
+ * <p>
+ * Issue lines have the form {@code path[:line[:column]]: severity: message}. The path is read up to the trailing
+ * numeric components, so Windows drive letters ({@code C:\project\file.py}) are kept, and the message is everything
+ * after the first severity marker, so it may contain colons. Any other line (summary, {@code --pretty} source
+ * snippets...) is ignored.
+ * <p>
+ * The characters are scanned once from a reused buffer, and the paths are interned per parser, as every issue of
+ * a file shares the same path.
+ */
+final class MypyOutputParser {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INITIAL_LINE_SIZE = 256;
+    private static final int MAX_INT_DIGITS = 9;
+    private static final int DEFAULT_COLUMN = 1;
+    private static final char[][] SEVERITY_MARKERS = {
+            ": error:".toCharArray(),
+            ": warning:".toCharArray(),
+            ": note:".toCharArray(),
+    };
+    private static final SeverityLevel[] SEVERITY_LEVELS = {
+            SeverityLevel.ERROR,
+            SeverityLevel.WARNING,
+            SeverityLevel.NOTE,
+    };
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final Map<String, String> paths = new HashMap<>();
+    private char[] line = new char[INITIAL_LINE_SIZE];
+    private String lastPath;
+
+    MypyOutputParser(final Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Read the whole output, passing each issue to {@code issueConsumer} as soon as its line is complete.
+     *
+     * @param issueConsumer notified of every parsed issue.
+     * @throws IOException if reading fails.
+     */
+    void parse(final Consumer<Issue> issueConsumer) throws IOException {
+        int length = 0;
+        boolean skipLineFeed = false;
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+            for (int i = 0; i < read; i++) {
+                final char c = buffer[i];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+                if (c == '\n' || c == '\r') {
+                    skipLineFeed = c == '\r';
+                    emit(length, issueConsumer);
+                    length = 0;
+                } else {
+                    if (length == line.length) {
+                        char[] grown = new char[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, length);
+                        line = grown;
+                    }
+                    line[length++] = c;
+                }
+            }
+        }
+        if (length > 0) {
+            emit(length, issueConsumer);
+        }
+    }
+
+    private void emit(final int length, final Consumer<Issue> issueConsumer) {
+        final Issue issue = parseLine(line, length);
+        if (issue != null) {
+            issueConsumer.accept(issue);
+        }
+    }
+
+    /**
+     * Parse a single output line.
+     *
+     * @param chars  the line characters, without the line terminator.
+     * @param length the number of characters of the line.
+     * @return the issue, or null if the line does not report one.
+     */
+    Issue parseLine(final char[] chars, final int length) {
+        if (length == 0 || chars[0] <= ' ') {
+            return null;
+        }
+
+        int markerStart = -1;
+        int severity = -1;
+        for (int i = 0; i < length && markerStart < 0; i++) {
+            if (chars[i] != ':') {
+                continue;
+            }
+            for (int s = 0; s < SEVERITY_MARKERS.length; s++) {
+                if (regionMatches(chars, length, i, SEVERITY_MARKERS[s])) {
+                    markerStart = i;
+                    severity = s;
+                    break;
+                }
+            }
+        }
+        if (markerStart <= 0) {
+            return null;
+        }
+
+        // the position is made of up to two trailing numeric components: path[:line[:column]]
+        int pathEnd = markerStart;
+        int lastNumber = -1;
+        int secondLastNumber = -1;
+        for (int component = 0; component < 2; component++) {
+            int colon = pathEnd - 1;
+            while (colon >= 0 && chars[colon] >= '0' && chars[colon] <= '9') {
+                colon--;
+            }
+            int digits = pathEnd - colon - 1;
+            if (colon <= 0 || chars[colon] != ':' || digits == 0 || digits > MAX_INT_DIGITS) {
+                break;
+            }
+            secondLastNumber = lastNumber;
+            lastNumber = parseInt(chars, colon + 1, pathEnd);
+            pathEnd = colon;
+        }
+
+        final int lineNumber;
+        final int column;
+        if (secondLastNumber >= 0) {
+            lineNumber = lastNumber;
+            // Mypy uses 1-based column numbers, IntelliJ expects 0-based
+            column = secondLastNumber - 1;
+        } else if (lastNumber >= 0) {
+            lineNumber = lastNumber;
+            column = DEFAULT_COLUMN;
+        } else {
+            lineNumber = 1;
+            column = DEFAULT_COLUMN;
+        }
+
+        int messageStart = markerStart + SEVERITY_MARKERS[severity].length;
+        int messageEnd = length;
+        while (messageStart < messageEnd && chars[messageStart] <= ' ') {
+            messageStart++;
+        }
+        while (messageEnd > messageStart && chars[messageEnd - 1] <= ' ') {
+            messageEnd--;
+        }
+
+        return new Issue(path(chars, pathEnd), lineNumber, column, SEVERITY_LEVELS[severity],
+                new String(chars, messageStart, messageEnd - messageStart));
+    }
+
+    private String path(final char[] chars, final int length) {
+        int start = 0;
+        int end = length;
+        while (end > start && chars[end - 1] <= ' ') {
+            end--;
+        }
+        if (lastPath != null && lastPath.length() == end - start && regionMatches(chars, end, start,
+                lastPath)) {
+            return lastPath;
+        }
+        String path = new String(chars, start, end - start);
+        String interned = paths.putIfAbsent(path, path);
+        lastPath = interned != null ? interned : path;
+        return lastPath;
+    }
+
+    private static boolean regionMatches(final char[] chars, final int length, final int offset,
+                                         final char[] expected) {
+        if (offset + expected.length > length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (chars[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(final char[] chars, final int length, final int offset,
+                                         final String expected) {
+        if (offset + expected.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (chars[offset + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(final char[] chars, final int start, final int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + chars[i] - '0';
+        }
+        return value;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.projectRoots.ProjectJdkTable;
+import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.PathUtil;
+import com.intellij.util.messages.MessageBusConnection;
+import com.leinardi.pycharm.mypy.MypyConfigService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Project-level cache of the {@link MypyExecutionProfile} and of the Mypy availability check ({@code mypy -V}).
+ * <p>
+ * The profile is resolved once per settings generation and project SDK. The probe result, including the detected
+ * {@link MypyVersion}, is additionally tied to the modification time of the resolved executable. Both are dropped
+ * when the SDKs or the project roots change and when a file named like the executable (or like the {@code mypy}
+ * package) is created, deleted or modified, so that installing or upgrading Mypy is picked up without restarting
+ * the IDE.
+ */
+public class MypyProbeCache {
+    private static final Logger LOG = Logger.getInstance(MypyProbeCache.class);
+
+    private final Project project;
+    @Nullable
+    private volatile Profile profile;
+    @Nullable
+    private volatile Probe probe;
+
+    public MypyProbeCache(@NotNull final Project project, @NotNull final Disposable parentDisposable) {
+        this.project = project;
+
+        MessageBusConnection connection = project.getMessageBus().connect(parentDisposable);
+        connection.subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(@NotNull final ModuleRootEvent event) {
+                invalidate();
+            }
+        });
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull final List<? extends VFileEvent> events) {
+                Profile current = profile;
+                if (current != null && events.stream().anyMatch(event -> current.isAffectedBy(event.getPath()))) {
+                    invalidate();
+                }
+            }
+        });
+        ApplicationManager.getApplication().getMessageBus().connect(parentDisposable)
+                .subscribe(ProjectJdkTable.JDK_TABLE_TOPIC, new ProjectJdkTable.Listener() {
+                    @Override
+                    public void jdkAdded(@NotNull final Sdk jdk) {
+                        invalidate();
+                    }
+
+                    @Override
+                    public void jdkRemoved(@NotNull final Sdk jdk) {
+                        invalidate();
+                    }
+
+                    @Override
+                    public void jdkNameChanged(@NotNull final Sdk jdk, @NotNull final String previousName) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * The execution profile of the project, resolving it only if the settings or the project SDK changed.
+     *
+     * @return the current execution profile.
+     */
+    @NotNull
+    public synchronized MypyExecutionProfile getExecutionProfile() {
+        long configGeneration = getConfigGeneration();
+        String sdkHomePath = getSdkHomePath();
+        Profile current = profile;
+        if (current != null && current.isValid(configGeneration, sdkHomePath)) {
+            return current.executionProfile;
+        }
+
+        MypyExecutionProfile executionProfile = MypyRunner.resolveExecutionProfile(project);
+        profile = new Profile(executionProfile, project, sdkHomePath, configGeneration);
+        probe = null;
+        LOG.debug("Resolved Mypy execution profile: " + executionProfile.getMypyPath());
+        return executionProfile;
+    }
+
+    /**
+     * The version of the Mypy executable of the project, probing it only if the cached result is stale.
+     *
+     * @return the detected version, {@link MypyVersion#UNKNOWN} if it can't be parsed, or null if Mypy is not
+     *         available.
+     */
+    @Nullable
+    public synchronized MypyVersion getMypyVersion() {
+        MypyExecutionProfile executionProfile = getExecutionProfile();
+        Profile currentProfile = profile;
+        Probe current = probe;
+        if (current != null && currentProfile != null && current.mypyLastModified == currentProfile.lastModified()) {
+            return current.version;
+        }
+
+        String mypyPath = executionProfile.getMypyPath();
+        MypyVersion version = mypyPath.isEmpty() ? null
+                : MypyRunner.getMypyVersion(mypyPath, project, executionProfile.getInterpreterPath());
+        probe = new Probe(currentProfile != null ? currentProfile.lastModified() : 0, version);
+        LOG.debug("Mypy probe for " + mypyPath + ": " + version);
+        return version;
+    }
+
+    /**
+     * Drop the cached profile and probe: the next check resolves the profile and runs {@code mypy -V} again.
+     */
+    public void invalidate() {
+        profile = null;
+        probe = null;
+    }
+
+    private long getConfigGeneration() {
+        MypyConfigService mypyConfigService = MypyConfigService.getInstance(project);
+        return mypyConfigService != null ? mypyConfigService.getModificationCount() : -1;
+    }
+
+    @Nullable
+    private String getSdkHomePath() {
+        Sdk projectSdk = ProjectRootManager.getInstance(project).getProjectSdk();
+        return projectSdk != null ? projectSdk.getHomePath() : null;
+    }
+
+    private static long lastModified(final String path) {
+        return path.isEmpty() ? 0 : new File(path).lastModified();
+    }
+
+    private static final class Profile {
+        private final MypyExecutionProfile executionProfile;
+        private final String resolvedMypyPath;
+        private final String mypyFileName;
+        @Nullable
+        private final String sdkHomePath;
+        private final long configGeneration;
+
+        private Profile(final MypyExecutionProfile executionProfile, final Project project,
+                        @Nullable final String sdkHomePath, final long configGeneration) {
+            String mypyPath = executionProfile.getMypyPath();
+            this.executionProfile = executionProfile;
+            this.resolvedMypyPath = mypyPath.isEmpty() ? "" : MypyRunner.resolveMypyPath(mypyPath, project);
+            this.mypyFileName = PathUtil.getFileName(resolvedMypyPath);
+            this.sdkHomePath = sdkHomePath;
+            this.configGeneration = configGeneration;
+        }
+
+        private boolean isValid(final long configGeneration, @Nullable final String sdkHomePath) {
+            return this.configGeneration == configGeneration && Objects.equals(this.sdkHomePath, sdkHomePath);
+        }
+
+        private long lastModified() {
+            return MypyProbeCache.lastModified(resolvedMypyPath);
+        }
+
+        private boolean isAffectedBy(final String path) {
+            String fileName = PathUtil.getFileName(path);
+            return fileName.startsWith(MypyRunner.MYPY_PACKAGE_NAME)
+                    || (!mypyFileName.isEmpty() && fileName.equals(mypyFileName));
+        }
+    }
+
+    private static final class Probe {
+        private final long mypyLastModified;
+        @Nullable
+        private final MypyVersion version;
+
+        private Probe(final long mypyLastModified, @Nullable final MypyVersion version) {
+            this.mypyLastModified = mypyLastModified;
+            this.version = version;
+        }
+    }
+}
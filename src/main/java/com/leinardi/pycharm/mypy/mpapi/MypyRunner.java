@@ -19,22 +19,30 @@ package com.leinardi.pycharm.mypy.mpapi;
 import com.intellij.execution.ExecutionException;
 import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.execution.configurations.ParametersList;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.projectRoots.Sdk;
 import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.PathUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.jetbrains.python.packaging.PyPackage;
 import com.jetbrains.python.packaging.PyPackageManager;
 import com.jetbrains.python.sdk.PySdkUtil;
 import com.jetbrains.python.sdk.PythonEnvUtil;
 import com.leinardi.pycharm.mypy.MypyConfigService;
+import com.leinardi.pycharm.mypy.MypyPlugin;
 import com.leinardi.pycharm.mypy.exception.MypyPluginException;
 import com.leinardi.pycharm.mypy.exception.MypyPluginParseException;
 import com.leinardi.pycharm.mypy.exception.MypyToolException;
+import com.leinardi.pycharm.mypy.util.Async;
 import com.leinardi.pycharm.mypy.util.FileTypes;
 import com.leinardi.pycharm.mypy.util.Notifications;
 import org.jdesktop.swingx.util.OS;
@@ -47,17 +55,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.nio.file.Path;
 
@@ -65,13 +75,26 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class MypyRunner {
     public static final String MYPY_PACKAGE_NAME = "mypy";
+    private static final String DAEMON_PREFIX = "d";
+    static final String SYSTEM_DIR_NAME = "mypy";
+    private static final String CACHE_DIR_OPTION = "--cache-dir";
+    private static final String CONFIG_FILE_OPTION = "--config-file";
+    private static final String SHADOW_FILE_OPTION = "--shadow-file";
+    private static final String FOLLOW_IMPORTS_OPTION = "--follow-imports";
+    private static final String FOLLOW_IMPORTS_SILENT = "silent";
+    // dmypy refuses to start with follow-imports=silent
+    static final String DAEMON_FOLLOW_IMPORTS = "skip";
+    private static final String ARGUMENT_FILE_PREFIX = "@";
+    // the files are passed in an argument file beyond this total length, well below the Windows limit of 32767
+    static final int ARGUMENT_FILE_MIN_LENGTH = 8192;
+    private static final int MAX_LOGGED_COMMAND_LINE_LENGTH = 1000;
+    private static final int JSON_OUTPUT_MIN_MAJOR_VERSION = 1;
+    private static final int JSON_OUTPUT_MIN_MINOR_VERSION = 11;
     private static final String MYPY_EXECUTABLE_NAME = MYPY_PACKAGE_NAME + (OS.isWindows() ? ".exe" : "");
     private static final Logger LOG = com.intellij.openapi.diagnostic.Logger.getInstance(MypyRunner.class);
     private static final String ENV_KEY_VIRTUAL_ENV = "VIRTUAL_ENV";
     private static final String ENV_KEY_PATH = "PATH";
     private static final String ENV_KEY_PYTHONHOME = "PYTHONHOME";
-    private static final String TYPE_RE = " (error|warning|note):";
-    private static final String ISSUE_RE = "([^\\s:]+):(\\d+:)?(\\d+:)?" + TYPE_RE + ".*";
     private static final String WHICH_EXECUTABLE_NAME = OS.isWindows() ? "where" : "which";
     private static final String ACTIVATE_FILE_NAME = OS.isWindows() ? "activate.bat" : "activate";
 
@@ -79,22 +102,32 @@ public class MypyRunner {
     }
 
     public static boolean isMypyPathValid(String mypyPath, Project project) {
-        File mypyFile = new File(mypyPath);
-        if (!mypyFile.isAbsolute() && !mypyFile.getAbsolutePath().equalsIgnoreCase(mypyPath)) {
-            mypyPath = project.getBasePath() + File.separator + mypyPath;
-        }
+        return getMypyVersion(mypyPath, project) != null;
+    }
+
+    /**
+     * Run {@code mypy -V} to check the executable and detect its version.
+     *
+     * @param mypyPath the path to the Mypy executable.
+     * @param project  the current project.
+     * @return the detected version, {@link MypyVersion#UNKNOWN} if it can't be parsed, or null if Mypy can't run.
+     */
+    @Nullable
+    public static MypyVersion getMypyVersion(String mypyPath, Project project) {
+        VirtualFile interpreterFile = getInterpreterFile(project);
+        return getMypyVersion(mypyPath, project, interpreterFile != null ? interpreterFile.getPath() : null);
+    }
+
+    @Nullable
+    static MypyVersion getMypyVersion(String mypyPath, Project project, @Nullable String interpreterPath) {
+        mypyPath = resolveMypyPath(mypyPath, project);
         VirtualFile mypyVirtualFile = LocalFileSystem.getInstance().findFileByPath(mypyPath);
         if (mypyVirtualFile == null || !mypyVirtualFile.exists() || mypyVirtualFile.isDirectory()) {
             LOG.warn("Error while checking Mypy path " + mypyPath + ": null or not exists or not a file path");
-            return false;
-        }
-        GeneralCommandLine cmd = getMypyCommandLine(project, mypyPath);
-        boolean daemon = false;
-        if (daemon) {
-            cmd.addParameter("status");
-        } else {
-            cmd.addParameter("-V");
+            return null;
         }
+        GeneralCommandLine cmd = getMypyCommandLine(interpreterPath, mypyPath);
+        cmd.addParameter("-V");
         final Process process;
         try {
             process = cmd.createProcess();
@@ -113,22 +146,42 @@ public class MypyRunner {
             if (process.exitValue() != 0) {
                 LOG.info("Command Line string: " + cmd.getCommandLineString());
                 LOG.warn("Mypy path check process.exitValue: " + process.exitValue());
-                return false;
+                return null;
             } else {
-                return true;
+                return MypyVersion.parse(output);
             }
         } catch (ExecutionException | InterruptedException e) {
             LOG.info("Command Line string: " + cmd.getCommandLineString());
             LOG.warn("Error while checking Mypy path", e);
-            return false;
+            return null;
         }
     }
 
+    /**
+     * Resolve a Mypy path relative to the project base directory.
+     *
+     * @param mypyPath the configured or detected Mypy path.
+     * @param project  the current project.
+     * @return the path of the Mypy executable.
+     */
+    static String resolveMypyPath(String mypyPath, Project project) {
+        File mypyFile = new File(mypyPath);
+        if (!mypyFile.isAbsolute() && !mypyFile.getAbsolutePath().equalsIgnoreCase(mypyPath)) {
+            return project.getBasePath() + File.separator + mypyPath;
+        }
+        return mypyPath;
+    }
+
     public static String getMypyPath(Project project) {
         return getMypyPath(project, true);
     }
 
     public static String getMypyPath(Project project, boolean checkConfigService) {
+        return getMypyPath(project, checkConfigService, getInterpreterFile(project));
+    }
+
+    private static String getMypyPath(Project project, boolean checkConfigService,
+                                      @Nullable VirtualFile interpreterFile) {
         MypyConfigService mypyConfigService = MypyConfigService.getInstance(project);
         if (checkConfigService) {
             if (mypyConfigService == null) {
@@ -140,7 +193,6 @@ public class MypyRunner {
             }
         }
 
-        VirtualFile interpreterFile = getInterpreterFile(project);
         if (isVenv(interpreterFile)) {
             VirtualFile mypyFile = LocalFileSystem.getInstance()
                     .findFileByPath(interpreterFile.getParent().getPath() + File.separator + MYPY_EXECUTABLE_NAME);
@@ -153,15 +205,35 @@ public class MypyRunner {
         return "";
     }
 
+    /**
+     * Resolve the interpreter, the Mypy executable, the environment and the work directory of the project. This
+     * may launch {@code which mypy}: use the profile cached by {@link MypyProbeCache#getExecutionProfile()}.
+     *
+     * @param project the current project.
+     * @return the resolved profile.
+     */
+    static MypyExecutionProfile resolveExecutionProfile(Project project) {
+        VirtualFile interpreterFile = getInterpreterFile(project);
+        return new MypyExecutionProfile(
+                interpreterFile != null ? interpreterFile.getPath() : null,
+                getMypyPath(project, true, interpreterFile),
+                getEnvironment(interpreterFile),
+                project.getBasePath());
+    }
+
     public static boolean checkMypyAvailable(Project project) {
         return checkMypyAvailable(project, false);
     }
 
     public static boolean checkMypyAvailable(Project project, boolean showNotifications) {
-        String mypyPath = getMypyPath(project);
-        boolean isMypyPathValid = !mypyPath.isEmpty() && isMypyPathValid(mypyPath, project);
-        if (isMypyPathValid) {
-            return true;
+        return probeMypy(project, showNotifications) != null;
+    }
+
+    @Nullable
+    private static MypyVersion probeMypy(Project project, boolean showNotifications) {
+        MypyVersion version = project.getService(MypyPlugin.class).getProbeCache().getMypyVersion();
+        if (version != null) {
+            return version;
         }
 
         Sdk projectSdk = ProjectRootManager.getInstance(project).getProjectSdk();
@@ -180,7 +252,7 @@ public class MypyRunner {
                 }
             }
         }
-        return false;
+        return null;
     }
 
     private static String getMypyConfigFile(Project project, String mypyConfigFilePath) throws MypyPluginException {
@@ -204,7 +276,7 @@ public class MypyRunner {
         try {
             process = cmd.createProcess();
             Optional<String> path = new BufferedReader(
-                    new InputStreamReader(cmd.createProcess().getInputStream(), UTF_8))
+                    new InputStreamReader(process.getInputStream(), UTF_8))
                     .lines()
                     .findFirst();
             process.waitFor();
@@ -228,7 +300,40 @@ public class MypyRunner {
 
     public static List<Issue> scan(Project project, Set<String> filesToScan)
             throws InterruptedIOException, InterruptedException {
-        if (!checkMypyAvailable(project, true)) {
+        return scan(project, filesToScan, issue -> {
+        });
+    }
+
+    /**
+     * Scan the given files, passing each issue to {@code issueConsumer} as soon as Mypy reports it.
+     *
+     * @param project       the current project.
+     * @param filesToScan   the paths of the files to scan.
+     * @param issueConsumer notified of every issue while Mypy is still running.
+     * @return all the reported issues.
+     */
+    public static List<Issue> scan(Project project, Set<String> filesToScan, Consumer<Issue> issueConsumer)
+            throws InterruptedIOException, InterruptedException {
+        return scan(project, filesToScan, Collections.emptyMap(), issueConsumer);
+    }
+
+    /**
+     * Scan the given files, passing each issue to {@code issueConsumer} as soon as Mypy reports it.
+     * <p>
+     * Mypy reads a file with a shadow file from the shadow file instead ({@code --shadow-file}), but still checks
+     * and reports it under its own path and module name. The daemon doesn't support shadow files: they are ignored.
+     *
+     * @param project       the current project.
+     * @param filesToScan   the paths of the files to scan.
+     * @param shadowFiles   the paths of the files to read instead of some of the files to scan, by file to scan.
+     * @param issueConsumer notified of every issue while Mypy is still running.
+     * @return all the reported issues.
+     */
+    public static List<Issue> scan(Project project, Set<String> filesToScan, Map<String, String> shadowFiles,
+                                   Consumer<Issue> issueConsumer)
+            throws InterruptedIOException, InterruptedException {
+        MypyVersion mypyVersion = probeMypy(project, true);
+        if (mypyVersion == null) {
             return new ArrayList<>();
         }
         MypyConfigService mypyConfigService = MypyConfigService.getInstance(project);
@@ -239,88 +344,398 @@ public class MypyRunner {
             throw new MypyPluginException("Illegal state: mypyConfigService is null");
         }
 
-        String mypyPath = getMypyPath(project);
-        if (mypyPath.isEmpty()) {
+        MypyExecutionProfile profile = project.getService(MypyPlugin.class).getProbeCache().getExecutionProfile();
+        if (profile.getMypyPath().isEmpty()) {
             throw new MypyToolException("Path to Mypy executable not set (check Plugin Settings)");
         }
 
-        String mypyConfigFilePath = getMypyConfigFile(project, mypyConfigService.getMypyConfigFilePath());
+        boolean jsonOutput = isJsonOutput(mypyConfigService, mypyVersion);
+        List<String> mypyArguments = new ArrayList<>(getMypyArguments(project, mypyVersion));
+        // a --cache-dir set in the arguments takes precedence over the cache directory managed by the plugin
+        String userCacheDir = getOptionValue(mypyArguments, CACHE_DIR_OPTION);
+        File cacheDir = userCacheDir != null ? new File(userCacheDir)
+                : MypyCacheDirectories.getCacheDir(project, profile, getOptionValue(mypyArguments, CONFIG_FILE_OPTION));
+        if (userCacheDir == null) {
+            mypyArguments.add(CACHE_DIR_OPTION);
+            mypyArguments.add(cacheDir.getPath());
+        }
+        if (mypyConfigService.isSqliteCache()) {
+            mypyArguments.add("--sqlite-cache");
+        }
+        if (mypyConfigService.isFineGrainedCache()) {
+            mypyArguments.add("--cache-fine-grained");
+        }
+        boolean useDaemon = mypyConfigService.isUseDaemon();
 
         // Necessary because of this: https://github.com/python/mypy/issues/4008#issuecomment-417862464
-        List<Issue> result = new ArrayList<>();
+        // the entry points are checked in the fewest groups without duplicate module names
+        Set<String> entryPoints = new HashSet<>();
         Set<String> filesToScanFiltered = new HashSet<>();
         for (String filePath : filesToScan) {
-            if (filePath.endsWith("__init__.py")
-                    || filePath.endsWith("__main__.py")
-                    || filePath.endsWith("setup.py")
-            ) {
-                result.addAll(runMypy(project, Collections.singleton(filePath), mypyPath, mypyConfigFilePath,
-                        mypyConfigService));
+            if (ScanShards.isEntryPoint(filePath)) {
+                entryPoints.add(filePath);
             } else {
                 filesToScanFiltered.add(filePath);
             }
         }
-        result.addAll(runMypy(project, filesToScanFiltered, mypyPath, mypyConfigFilePath, mypyConfigService));
-        return result;
+        List<Set<String>> invocations = new ArrayList<>(ScanShards.groupByModuleName(entryPoints));
+        int entryPointGroupCount = invocations.size();
+        int shardCount = useDaemon ? 1
+                : ScanShards.shardCount(mypyConfigService.getScanProcesses(), filesToScanFiltered.size());
+        if (shardCount > 1) {
+            invocations.addAll(ScanShards.partition(filesToScanFiltered, shardCount));
+        } else if (!filesToScanFiltered.isEmpty()) {
+            invocations.add(filesToScanFiltered);
+        }
+
+        if (useDaemon) {
+            List<Issue> result = new ArrayList<>();
+            for (Set<String> invocation : invocations) {
+                result.addAll(runMypy(project, invocation, profile, mypyArguments, true, jsonOutput, issueConsumer));
+            }
+            return result;
+        } else if (invocations.size() == 1) {
+            Set<String> invocation = invocations.get(0);
+            return runMypyLeased(project, invocation, profile, withShadowFiles(mypyArguments, invocation, shadowFiles),
+                    cacheDir, jsonOutput, issueConsumer);
+        }
+
+        // the first invocation of the files which are not entry points (all of them, unless sharded) keeps the main
+        // cache directory, warmed by the checks of single files
+        Set<String> mainInvocation = invocations.size() > entryPointGroupCount
+                ? invocations.get(entryPointGroupCount) : null;
+        List<List<String>> shardArguments = new ArrayList<>();
+        List<File> shardCacheDirs = new ArrayList<>();
+        Set<String> shardKeys = new HashSet<>();
+        for (Set<String> invocation : invocations) {
+            shardArguments.add(withShadowFiles(mypyArguments, invocation, shadowFiles));
+            if (invocation == mainInvocation) {
+                shardCacheDirs.add(cacheDir);
+                continue;
+            }
+            // the other invocations use a directory keyed by their packages, reused by the same invocation in the
+            // next scans
+            String shardKey = ScanShards.shardKey(invocation);
+            for (int duplicate = 1; !shardKeys.add(shardKey); duplicate++) {
+                shardKey = ScanShards.shardKey(invocation) + "-" + duplicate;
+            }
+            shardCacheDirs.add(MypyCacheDirectories.getShardCacheDir(cacheDir, shardKey));
+        }
+        return runShards(project, invocations, shardArguments, shardCacheDirs, profile, jsonOutput, issueConsumer);
     }
 
-    private static List<Issue> runMypy(Project project, Set<String> filesToScan, String mypyPath,
-                                       String mypyConfigFilePath, MypyConfigService mypyConfigService)
+    /**
+     * Run Mypy with a lease of the cache directory: concurrent Mypy processes, of this scan or of another one, must
+     * not write to the same cache directory.
+     */
+    private static List<Issue> runMypyLeased(Project project, Set<String> filesToScan, MypyExecutionProfile profile,
+                                             List<String> mypyArguments, File cacheDir, boolean jsonOutput,
+                                             Consumer<Issue> issueConsumer)
+            throws InterruptedIOException, InterruptedException {
+        try (MypyCacheDirectories.Lease lease = MypyCacheDirectories.lease(cacheDir)) {
+            if (!lease.getDir().equals(cacheDir)) {
+                LOG.debug("Mypy cache in use by another process, using " + lease.getDir());
+            }
+            List<String> arguments = new ArrayList<>(mypyArguments);
+            // the last --cache-dir wins
+            arguments.add(CACHE_DIR_OPTION);
+            arguments.add(lease.getDir().getPath());
+            return runMypy(project, filesToScan, profile, arguments, false, jsonOutput, issueConsumer);
+        }
+    }
+
+    private static List<String> withShadowFiles(List<String> mypyArguments, Set<String> filesToScan,
+                                                Map<String, String> shadowFiles) {
+        List<String> arguments = new ArrayList<>(mypyArguments);
+        for (String file : filesToScan) {
+            String shadowFile = shadowFiles.get(file);
+            if (shadowFile != null) {
+                arguments.add(SHADOW_FILE_OPTION);
+                arguments.add(file);
+                arguments.add(shadowFile);
+            }
+        }
+        return arguments;
+    }
+
+    /**
+     * Check each partition of the files with its own Mypy process, running up to the configured number of them
+     * concurrently. If a process fails or the calling thread is interrupted, the other ones are cancelled.
+     */
+    private static List<Issue> runShards(Project project, List<Set<String>> shards, List<List<String>> shardArguments,
+                                         List<File> shardCacheDirs, MypyExecutionProfile profile, boolean jsonOutput,
+                                         Consumer<Issue> issueConsumer)
+            throws InterruptedIOException, InterruptedException {
+        MypyConfigService mypyConfigService = MypyConfigService.getInstance(project);
+        int parallelism = ScanShards.processCount(mypyConfigService != null ? mypyConfigService.getScanProcesses() : 0);
+        LOG.info("Scanning with " + shards.size() + " Mypy processes, " + parallelism + " at a time");
+        ExecutorService executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Mypy Scan", parallelism);
+        // the consumers are not thread-safe: the issues of concurrent processes are passed one at a time
+        Object consumerLock = new Object();
+        Consumer<Issue> serializedConsumer = issue -> {
+            synchronized (consumerLock) {
+                issueConsumer.accept(issue);
+            }
+        };
+        List<CompletableFuture<List<Issue>>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            Set<String> shard = shards.get(i);
+            List<String> arguments = shardArguments.get(i);
+            File shardCacheDir = shardCacheDirs.get(i);
+            futures.add(Async.submit(executor, () -> runMypyLeased(project, shard, profile, arguments, shardCacheDir,
+                    jsonOutput, serializedConsumer)));
+        }
+
+        // the processes run in other threads: the cancellation of this one is passed on by cancelling the futures
+        List<Issue> issues = new ArrayList<>();
+        try {
+            awaitShards(futures);
+            // a failed shard first: the other ones may still run
+            for (CompletableFuture<List<Issue>> future : futures) {
+                if (future.isCompletedExceptionally()) {
+                    future.get();
+                }
+            }
+            for (CompletableFuture<List<Issue>> future : futures) {
+                issues.addAll(future.get());
+            }
+        } catch (java.util.concurrent.ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedIOException) {
+                throw (InterruptedIOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MypyPluginException("Error while running a Mypy scan process", cause);
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        return issues;
+    }
+
+    /**
+     * Wait until all the shards completed, or one of them failed, notified by their completion rather than polled.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private static void awaitShards(List<CompletableFuture<List<Issue>>> futures)
+            throws InterruptedIOException, InterruptedException {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((value, error) -> done.complete(null));
+        futures.forEach(future -> future.whenComplete((issues, error) -> {
+            if (error != null) {
+                done.complete(null);
+            }
+        }));
+        if (ProgressManager.getGlobalProgressIndicator() == null) {
+            try {
+                done.get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                // not reached: completed normally
+                throw new IllegalStateException(e);
+            }
+            return;
+        }
+        try {
+            ProgressIndicatorUtils.awaitWithCheckCanceled(done);
+        } catch (ProcessCanceledException e) {
+            throw new InterruptedIOException("Mypy scan cancelled");
+        }
+    }
+
+    private static List<Issue> runMypy(Project project, Set<String> filesToScan, MypyExecutionProfile profile,
+                                       List<String> mypyArguments, boolean useDaemon, boolean jsonOutput,
+                                       Consumer<Issue> issueConsumer)
             throws InterruptedIOException, InterruptedException {
         if (filesToScan.isEmpty()) {
             return new ArrayList<>();
         }
-        boolean daemon = false;
 
-        GeneralCommandLine cmd = new GeneralCommandLine(mypyPath);
-        cmd.setCharset(UTF_8);
-        if (daemon) {
-            cmd.addParameter("run");
-            cmd.addParameter("--");
-            cmd.addParameter("``--show-column-numbers");
-        } else {
-            cmd.addParameter("--show-column-numbers");
+        if (useDaemon) {
+            MypyDaemon daemon = project.getService(MypyPlugin.class).getDaemon();
+            return daemon.check(profile, mypyArguments, filesToScan, issueConsumer);
         }
-        cmd.addParameter("--follow-imports");
-        cmd.addParameter("silent");
 
-        injectEnvironmentVariables(project, cmd);
+        GeneralCommandLine cmd = profile.newCommandLine(profile.getMypyPath());
+        cmd.addParameters(mypyArguments);
+        if (filesToScan.stream().mapToInt(String::length).sum() < ARGUMENT_FILE_MIN_LENGTH) {
+            for (String file : filesToScan) {
+                cmd.addParameter(file);
+            }
+            return runCommand(project, cmd, jsonOutput, issueConsumer);
+        }
 
-        if (!mypyConfigFilePath.isEmpty()) {
-            cmd.addParameter("--config-file");
-            cmd.addParameter(mypyConfigFilePath);
+        // a long file list is passed in an argument file, far from the command line limits
+        File argumentFile;
+        try {
+            argumentFile = writeArgumentFile(filesToScan);
+        } catch (IOException e) {
+            throw new MypyToolException("Unable to write the Mypy argument file", e);
+        }
+        cmd.addParameter(ARGUMENT_FILE_PREFIX + argumentFile.getPath());
+        try {
+            return runCommand(project, cmd, jsonOutput, issueConsumer);
+        } finally {
+            FileUtil.delete(argumentFile);
         }
+    }
 
-        ParametersList parametersList = cmd.getParametersList();
+    /**
+     * Write an argument file, which Mypy reads when passed as {@code @path}: one argument per line.
+     *
+     * @param arguments the arguments.
+     * @return the temporary argument file, to delete once Mypy completed.
+     * @throws IOException if the file can't be written.
+     */
+    static File writeArgumentFile(Collection<String> arguments) throws IOException {
+        File argumentFile = FileUtil.createTempFile("mypy-arguments-", ".txt", true);
+        // read by Python with the file system encoding, UTF-8 in the UTF-8 mode of the Mypy processes
+        Files.write(argumentFile.toPath(), arguments, UTF_8);
+        return argumentFile;
+    }
+
+    /**
+     * The arguments passed to every Mypy invocation of the project, before the files to check.
+     *
+     * @param project     the current project.
+     * @param mypyVersion the version of the Mypy executable.
+     * @return the Mypy arguments.
+     * @throws MypyPluginException if the configured Mypy config file is not valid.
+     */
+    public static List<String> getMypyArguments(Project project, MypyVersion mypyVersion) {
+        MypyConfigService mypyConfigService = MypyConfigService.getInstance(project);
+        if (mypyConfigService == null) {
+            throw new MypyPluginException("Illegal state: mypyConfigService is null");
+        }
+        String mypyConfigFilePath = getMypyConfigFile(project, mypyConfigService.getMypyConfigFilePath());
+        List<String> mypyArguments = getMypyArguments(mypyConfigFilePath, mypyConfigService,
+                isJsonOutput(mypyConfigService, mypyVersion));
+        return mypyConfigService.isUseDaemon() ? toDaemonArguments(mypyArguments) : mypyArguments;
+    }
+
+    /**
+     * The value of the last occurrence of an option, which is the one Mypy uses.
+     */
+    @Nullable
+    private static String getOptionValue(List<String> mypyArguments, String option) {
+        int index = mypyArguments.lastIndexOf(option);
+        return index >= 0 && index + 1 < mypyArguments.size() ? mypyArguments.get(index + 1) : null;
+    }
+
+    private static boolean isJsonOutput(MypyConfigService mypyConfigService, MypyVersion mypyVersion) {
+        // the daemon keeps the text format, which every dmypy version supports
+        return !mypyConfigService.isUseDaemon()
+                && mypyVersion.isAtLeast(JSON_OUTPUT_MIN_MAJOR_VERSION, JSON_OUTPUT_MIN_MINOR_VERSION);
+    }
+
+    private static List<String> getMypyArguments(String mypyConfigFilePath, MypyConfigService mypyConfigService,
+                                                 boolean jsonOutput) {
+        ParametersList parametersList = new ParametersList();
+        if (jsonOutput) {
+            parametersList.add("--output");
+            parametersList.add("json");
+        }
+        parametersList.add("--show-column-numbers");
+        parametersList.add(FOLLOW_IMPORTS_OPTION);
+        parametersList.add(FOLLOW_IMPORTS_SILENT);
+        if (!mypyConfigFilePath.isEmpty()) {
+            parametersList.add(CONFIG_FILE_OPTION);
+            parametersList.add(mypyConfigFilePath);
+        }
         parametersList.addParametersString(mypyConfigService.getMypyArguments());
+        return parametersList.getList();
+    }
 
-        for (String file : filesToScan) {
-            cmd.addParameter(file);
+    /**
+     * The arguments of the mypy daemon: {@code dmypy} doesn't support {@code --follow-imports silent}, which is
+     * replaced by {@value #DAEMON_FOLLOW_IMPORTS}, whether it is the default of the plugin or set by the user.
+     *
+     * @param mypyArguments the arguments of a mypy run.
+     * @return the arguments of the daemon.
+     */
+    static List<String> toDaemonArguments(List<String> mypyArguments) {
+        List<String> daemonArguments = new ArrayList<>(mypyArguments);
+        for (int i = 0; i < daemonArguments.size(); i++) {
+            String argument = daemonArguments.get(i);
+            if (argument.equals(FOLLOW_IMPORTS_OPTION + "=" + FOLLOW_IMPORTS_SILENT)) {
+                daemonArguments.set(i, FOLLOW_IMPORTS_OPTION + "=" + DAEMON_FOLLOW_IMPORTS);
+            } else if (argument.equals(FOLLOW_IMPORTS_OPTION) && i + 1 < daemonArguments.size()
+                    && daemonArguments.get(i + 1).equals(FOLLOW_IMPORTS_SILENT)) {
+                daemonArguments.set(i + 1, DAEMON_FOLLOW_IMPORTS);
+            }
         }
-        cmd.setWorkDirectory(project.getBasePath());
-        final Process process;
+        return daemonArguments;
+    }
 
-        try {
-            LOG.info("Running command: " + cmd.getCommandLineString());
-            process = cmd.createProcess();
+    /**
+     * The directory of the IDE system path where the plugin keeps its files for the project (daemon status file,
+     * caches...).
+     *
+     * @param project the current project.
+     * @return the project system directory, which may not exist yet.
+     */
+    static File getProjectSystemDir(Project project) {
+        return new File(new File(PathManager.getSystemPath(), SYSTEM_DIR_NAME), project.getLocationHash());
+    }
+
+    /**
+     * The mypy daemon client is installed next to the mypy executable, e.g. {@code venv/bin/dmypy}.
+     */
+    static String getDaemonPath(String mypyPath) {
+        File mypyFile = new File(mypyPath);
+        String name = mypyFile.getName();
+        if (!name.startsWith(MYPY_PACKAGE_NAME)) {
+            throw new MypyToolException("Unable to locate the mypy daemon next to " + mypyPath);
+        }
+        return new File(mypyFile.getParentFile(), DAEMON_PREFIX + name).getPath();
+    }
+
+    static List<Issue> runCommand(Project project, GeneralCommandLine cmd, boolean jsonOutput,
+                                  Consumer<Issue> issueConsumer)
+            throws InterruptedIOException, InterruptedException {
+        LOG.info("Running command: " + toLogString(cmd));
+        try (CancellableProcess cancellableProcess = CancellableProcess.start(cmd)) {
+            Process process = cancellableProcess.getProcess();
             InputStream inputStream = process.getInputStream();
             assert (inputStream != null);
-
-            List<Issue> issues = parseMypyOutput(inputStream);
+            // read concurrently: a process filling the stderr pipe would block before closing its stdout
+            ErrorStreamDrainer errorStream = ErrorStreamDrainer.start(process.getErrorStream());
+
+            List<Issue> issues = new ArrayList<>();
+            Consumer<Issue> collector = issue -> {
+                issues.add(issue);
+                issueConsumer.accept(issue);
+            };
+            try {
+                if (jsonOutput) {
+                    parseMypyJsonOutput(inputStream, collector);
+                } else {
+                    parseMypyOutput(inputStream, collector);
+                }
+            } catch (IOException | RuntimeException e) {
+                // the output of a killed process is cut short
+                errorStream.stop();
+                cancellableProcess.checkCancelled();
+                throw e;
+            }
             process.waitFor();
+            cancellableProcess.checkCancelled();
 
+            // the issues reported on stderr, passed on from this thread once stdout is parsed
+            errorStream.getIssues().forEach(collector);
             int exitCode = process.exitValue();
+            if ((exitCode == 0 || exitCode == 1) && errorStream.hasTraceback()) {
+                // a crash whose exit code doesn't tell: its output can't be trusted
+                LOG.warn("Mypy printed a traceback: " + errorStream.getOutput());
+                throw new MypyPluginParseException("Mypy crashed: " + errorStream.getOutput());
+            }
             if (exitCode != 0 && exitCode != 1) {
                 // Ideally, anything other than 0 or 1 should be an abnormal exit code,
                 // but there are still cases where Mypy returns 2 and still reports errors
                 // (e.g. syntax errors or "break" outside loop).
                 // See https://github.com/python/mypy/issues/6003.
                 if (issues.isEmpty()) {
-                    InputStream errStream = process.getErrorStream();
-                    String detail = new BufferedReader(new InputStreamReader(errStream, UTF_8))
-                            .lines().collect(Collectors.joining("\n"));
-
-                    Notifications.showMypyAbnormalExit(project, detail);
+                    Notifications.showMypyAbnormalExit(project, errorStream.getOutput());
                     throw new MypyToolException("Mypy failed with code " + exitCode);
                 } else {
                     LOG.info("Mypy returned " + exitCode + ", but also reported issues");
@@ -329,50 +744,62 @@ public class MypyRunner {
             return issues;
 
         } catch (InterruptedIOException e) {
-            LOG.info("Command Line string: " + cmd.getCommandLineString());
+            LOG.info("Command Line string: " + toLogString(cmd));
             throw e;
         } catch (IOException e) {
-            LOG.info("Command Line string: " + cmd.getCommandLineString());
+            LOG.info("Command Line string: " + toLogString(cmd));
             throw new MypyPluginParseException(e.getMessage(), e);
         } catch (ExecutionException e) {
-            LOG.info("Command Line string: " + cmd.getCommandLineString());
+            LOG.info("Command Line string: " + toLogString(cmd));
             throw new MypyToolException("Error creating Mypy process", e);
         }
     }
 
+    /**
+     * The command line to log, truncated: it may hold thousands of files.
+     */
+    static String toLogString(GeneralCommandLine cmd) {
+        return StringUtil.trimMiddle(cmd.getCommandLineString(), MAX_LOGGED_COMMAND_LINE_LENGTH);
+    }
+
     @NotNull
     public static List<Issue> parseMypyOutput(@NotNull InputStream inputStream) throws IOException {
         ArrayList<Issue> issues = new ArrayList<>();
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
-        String rawLine;
-        Pattern typePattern = Pattern.compile(TYPE_RE);
-        while ((rawLine = bufferedReader.readLine()) != null) {
-            if (rawLine.matches(ISSUE_RE)) {
-                Matcher matcher = typePattern.matcher(rawLine);
-                if (matcher.find()) {
-                    int typeIndexStart = matcher.start();
-                    String[] splitPosition = rawLine.substring(0, typeIndexStart - 1).split(":", -1);
-                    String path = splitPosition[0].trim();
-                    int line = splitPosition.length > 1 ? Integer.parseInt(splitPosition[1].trim()) : 1;
-                    // Mypy uses 1-based column numbers, IntelliJ expects 0-based
-                    int column = splitPosition.length > 2 ? Integer.parseInt(splitPosition[2].trim()) - 1 : 1;
-                    String[] splitError = rawLine.substring(typeIndexStart).split(":", 2);
-                    SeverityLevel severityLevel = SeverityLevel.valueOf(splitError[0].trim().toUpperCase(Locale.ROOT));
-                    String message = splitError[1].trim();
-                    issues.add(new Issue(path, line, column, severityLevel, message));
-                }
-            }
-        }
+        parseMypyOutput(inputStream, issues::add);
         return issues;
     }
 
-    private static GeneralCommandLine getMypyCommandLine(Project project, String mypyPath) {
+    /**
+     * Parse the Mypy output line by line, passing each issue to {@code issueConsumer} as soon as it is read.
+     *
+     * @param inputStream   the Mypy standard output.
+     * @param issueConsumer notified of every parsed issue.
+     * @throws IOException if reading the stream fails.
+     */
+    public static void parseMypyOutput(@NotNull InputStream inputStream,
+                                       @NotNull Consumer<Issue> issueConsumer) throws IOException {
+        new MypyOutputParser(new InputStreamReader(inputStream, UTF_8)).parse(issueConsumer);
+    }
+
+    /**
+     * Parse the Mypy JSON output ({@code --output json}), passing each issue to {@code issueConsumer} as soon as it
+     * is read.
+     *
+     * @param inputStream   the Mypy standard output.
+     * @param issueConsumer notified of every parsed issue.
+     * @throws IOException if reading the stream fails.
+     */
+    public static void parseMypyJsonOutput(@NotNull InputStream inputStream,
+                                           @NotNull Consumer<Issue> issueConsumer) throws IOException {
+        new MypyJsonOutputParser(new InputStreamReader(inputStream, UTF_8)).parse(issueConsumer);
+    }
+
+    private static GeneralCommandLine getMypyCommandLine(@Nullable String interpreterPath, String mypyPath) {
         GeneralCommandLine cmd;
-        VirtualFile interpreterFile = getInterpreterFile(project);
-        if (interpreterFile == null || FileTypes.isWindowsExecutable(mypyPath)) {
+        if (interpreterPath == null || FileTypes.isWindowsExecutable(mypyPath)) {
             cmd = new GeneralCommandLine(mypyPath);
         } else {
-            cmd = new GeneralCommandLine(interpreterFile.getPath());
+            cmd = new GeneralCommandLine(interpreterPath);
             cmd.addParameter(mypyPath);
         }
         return cmd;
@@ -404,11 +831,10 @@ public class MypyRunner {
         }
     }
 
-    private static void injectEnvironmentVariables(Project project, GeneralCommandLine cmd) {
-        VirtualFile interpreterFile = getInterpreterFile(project);
+    private static Map<String, String> getEnvironment(@Nullable VirtualFile interpreterFile) {
         Map<String, String> extraEnv = null;
         Map<String, String> systemEnv = System.getenv();
-        Map<String, String> expandedCmdEnv = PySdkUtil.mergeEnvVariables(systemEnv, cmd.getEnvironment());
+        Map<String, String> expandedCmdEnv = PySdkUtil.mergeEnvVariables(systemEnv, Collections.emptyMap());
         if (isVenv(interpreterFile)) {
             String venvPath = PathUtil.getParentPath(PathUtil.getParentPath(interpreterFile.getPath()));
             extraEnv = new HashMap<>();
@@ -418,9 +844,7 @@ public class MypyRunner {
             }
             expandedCmdEnv.remove(ENV_KEY_PYTHONHOME);
         }
-        Map<String, String> env = extraEnv != null ? PySdkUtil.mergeEnvVariables(expandedCmdEnv, extraEnv) :
-                expandedCmdEnv;
-        cmd.withEnvironment(env);
+        return extraEnv != null ? PySdkUtil.mergeEnvVariables(expandedCmdEnv, extraEnv) : expandedCmdEnv;
     }
 
     private static boolean isVenv(@Nullable VirtualFile interpreterFile) {
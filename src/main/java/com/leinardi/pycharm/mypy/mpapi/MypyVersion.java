@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The version of a Mypy installation, as printed by {@code mypy -V} (e.g. {@code mypy 1.11.2 (compiled: yes)}).
+ */
+public final class MypyVersion {
+    /**
+     * Used when Mypy runs but its version can't be parsed: no optional feature is enabled.
+     */
+    public static final MypyVersion UNKNOWN = new MypyVersion(0, 0, 0);
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("(\\d+)\\.(\\d+)(?:\\.(\\d+))?");
+
+    private final int major;
+    private final int minor;
+    private final int patch;
+
+    public MypyVersion(int major, int minor, int patch) {
+        this.major = major;
+        this.minor = minor;
+        this.patch = patch;
+    }
+
+    @NotNull
+    public static MypyVersion parse(@NotNull String versionOutput) {
+        Matcher matcher = VERSION_PATTERN.matcher(versionOutput);
+        if (!matcher.find()) {
+            return UNKNOWN;
+        }
+        try {
+            int patch = matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 0;
+            return new MypyVersion(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), patch);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return this.major > major || (this.major == major && this.minor >= minor);
+    }
+
+    @Override
+    public String toString() {
+        return major + "." + minor + "." + patch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MypyVersion)) {
+            return false;
+        }
+        MypyVersion that = (MypyVersion) o;
+        return major == that.major &&
+                minor == that.minor &&
+                patch == that.patch;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(major, minor, patch);
+    }
+}
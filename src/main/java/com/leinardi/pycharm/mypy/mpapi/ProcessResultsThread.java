@@ -81,30 +81,31 @@ public class ProcessResultsThread implements ThrowableRunnable<RuntimeException>
 
     @Override
     public void run() {
-        final Map<PsiFile, List<Integer>> lineLengthCachesByFile = new HashMap<>();
+        final Map<PsiFile, LineIndex> lineIndexesByFile = new HashMap<>();
 
         for (final Issue event : errors) {
-            final PsiFile psiFile = fileNamesToPsiFiles.get(filenameFrom(event));
+            final PsiFile psiFile = fileNamesToPsiFiles.get(resolvePath(baseDir, event));
             if (psiFile == null) {
                 LOG.info("Could not find mapping for file: " + event.getPath() + " in " + fileNamesToPsiFiles);
                 return;
             }
 
-            List<Integer> lineLengthCache = lineLengthCachesByFile.get(psiFile);
-            if (lineLengthCache == null) {
-                // we cache the offset of each line as it is created, so as to
-                // avoid retreating ground we've already covered.
-                lineLengthCache = new ArrayList<>();
-                lineLengthCache.add(0); // line 1 is offset 0
+            // the index is built once per file from the PSI text, which is not copied
+            final LineIndex lineIndex = lineIndexesByFile.computeIfAbsent(psiFile,
+                    file -> LineIndex.of(file.getViewProvider().getContents(), tabWidth));
 
-                lineLengthCachesByFile.put(psiFile, lineLengthCache);
-            }
-
-            processEvent(psiFile, lineLengthCache, event);
+            processEvent(psiFile, lineIndex, event);
         }
     }
 
-    private String filenameFrom(final Issue issue) {
+    /**
+     * The absolute path of the file of an issue, as passed to Mypy.
+     *
+     * @param baseDir the project base directory, which Mypy paths may be relative to.
+     * @param issue   the issue.
+     * @return the normalised path of the file.
+     */
+    public static String resolvePath(final String baseDir, final Issue issue) {
         String path = normalisePath(withTrailingSeparator(baseDir) + issue.getPath());
         if (new File(path).exists()) {
             return path;
@@ -113,7 +114,7 @@ public class ProcessResultsThread implements ThrowableRunnable<RuntimeException>
         }
     }
 
-    private String normalisePath(String prefixedFileName) {
+    private static String normalisePath(String prefixedFileName) {
         try {
             return Paths.get(prefixedFileName).normalize().toString();
         } catch (InvalidPathException e) {
@@ -121,19 +122,19 @@ public class ProcessResultsThread implements ThrowableRunnable<RuntimeException>
         }
     }
 
-    private String withTrailingSeparator(final String path) {
+    private static String withTrailingSeparator(final String path) {
         if (path != null && !path.endsWith(File.separator)) {
             return path + File.separator;
         }
         return path;
     }
 
-    private void processEvent(final PsiFile psiFile, final List<Integer> lineLengthCache, final Issue event) {
+    private void processEvent(final PsiFile psiFile, final LineIndex lineIndex, final Issue event) {
         //        if (additionalChecksFail(psiFile, event)) {
         //            return;
         //        }
 
-        final Position position = findPosition(lineLengthCache, event, psiFile.textToCharArray());
+        final Position position = findPosition(lineIndex, event, psiFile.getTextLength());
         final PsiElement victim = position.element(psiFile);
 
         if (victim != null) {
@@ -174,63 +175,14 @@ public class ProcessResultsThread implements ThrowableRunnable<RuntimeException>
     //    }
 
     @NotNull
-    private Position findPosition(final List<Integer> lineLengthCache, final Issue event, final char[] text) {
+    private Position findPosition(final LineIndex lineIndex, final Issue event, final int textLength) {
         if (event.getLine() == 0) {
             return Position.at(event.getColumn());
-        } else if (event.getLine() <= lineLengthCache.size()) {
-            return Position.at(lineLengthCache.get(event.getLine() - 1) + event.getColumn());
-        } else {
-            return searchFromEndOfCachedData(lineLengthCache, event, text);
-        }
-    }
-
-    @NotNull
-    private Position searchFromEndOfCachedData(final List<Integer> lineLengthCache,
-                                               final Issue event,
-                                               final char[] text) {
-        final Position position;
-        int offset = lineLengthCache.get(lineLengthCache.size() - 1);
-        boolean afterEndOfLine = false;
-        int line = lineLengthCache.size();
-
-        int column = 0;
-        for (int i = offset; i < text.length; ++i) {
-            final char character = text[i];
-
-            // for linefeeds we need to handle CR, LF and CRLF,
-            // hence we accept either and only trigger a new
-            // line on the LF of CRLF.
-            final char nextChar = nextCharacter(text, i);
-            if (character == '\n' || (character == '\r' && nextChar != '\n')) {
-                ++line;
-                ++offset;
-                lineLengthCache.add(offset);
-                column = 0;
-            } else if (character == '\t') {
-                column += tabWidth;
-                ++offset;
-            } else {
-                ++column;
-                ++offset;
-            }
-
-            if (event.getLine() == line && event.getColumn() == column) {
-                if (column == 0 && Character.isWhitespace(nextChar)) {
-                    afterEndOfLine = true;
-                }
-                break;
-            }
-        }
-
-        position = Position.at(offset, afterEndOfLine);
-        return position;
-    }
-
-    private char nextCharacter(final char[] text, final int i) {
-        if ((i + 1) < text.length) {
-            return text[i + 1];
+        } else if (event.getLine() > lineIndex.getLineCount()) {
+            return Position.at(textLength);
         }
-        return '\0';
+        final int offset = lineIndex.getOffset(event.getLine(), event.getColumn());
+        return Position.at(offset, offset == lineIndex.getLineEndOffset(event.getLine()));
     }
 
     @NotNull
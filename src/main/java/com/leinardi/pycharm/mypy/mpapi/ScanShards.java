@@ -0,0 +1,202 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.leinardi.pycharm.mypy.util.Hashes;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Splits the files of a scan into partitions checked by concurrent Mypy processes.
+ * <p>
+ * The modules of a package import each other more often than modules of unrelated packages, so the files are
+ * grouped by directory and whole packages are assigned to the least loaded partition. Packages larger than a fair
+ * share are split, so that a flat project still uses every partition.
+ * <p>
+ * Package entry points ({@code __init__.py}, {@code __main__.py}, {@code setup.py}) are grouped separately, so that
+ * no invocation contains two files mapped to the same module name
+ * (see https://github.com/python/mypy/issues/4008).
+ */
+final class ScanShards {
+    /**
+     * Below this number of files per process, starting one more Mypy process costs more than it saves.
+     */
+    static final int MIN_FILES_PER_SHARD = 20;
+
+    private static final int SHARD_KEY_LENGTH = 16;
+    private static final String INIT_MODULE = "__init__";
+    private static final String[] INIT_FILES = {"__init__.py", "__init__.pyi"};
+
+    private ScanShards() {
+    }
+
+    /**
+     * The number of partitions to use for a scan.
+     *
+     * @param configuredProcesses the configured number of processes, or 0 to use one per CPU core.
+     * @param fileCount           the number of files to scan.
+     * @return the number of partitions, at least 1.
+     */
+    static int shardCount(final int configuredProcesses, final int fileCount) {
+        return Math.max(1, Math.min(processCount(configuredProcesses), fileCount / MIN_FILES_PER_SHARD));
+    }
+
+    /**
+     * The maximum number of Mypy processes running at the same time.
+     *
+     * @param configuredProcesses the configured number of processes, or 0 to use one per CPU core.
+     * @return the number of processes, at least 1.
+     */
+    static int processCount(final int configuredProcesses) {
+        return configuredProcesses > 0 ? configuredProcesses : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Is the file a package entry point, which can't be checked with every other file of the scan?
+     *
+     * @param file the file path.
+     * @return true for {@code __init__.py}, {@code __main__.py} and {@code setup.py}.
+     */
+    static boolean isEntryPoint(final String file) {
+        return file.endsWith("__init__.py")
+                || file.endsWith("__main__.py")
+                || file.endsWith("setup.py");
+    }
+
+    /**
+     * Split the files into the fewest groups in which every file maps to a distinct module name.
+     *
+     * @param files the file paths.
+     * @return the non-empty groups, as many as the most duplicated module name.
+     */
+    static List<Set<String>> groupByModuleName(final Collection<String> files) {
+        List<String> sortedFiles = new ArrayList<>(files);
+        sortedFiles.sort(Comparator.naturalOrder());
+        Map<String, Integer> occurrences = new HashMap<>();
+        List<Set<String>> groups = new ArrayList<>();
+        for (String file : sortedFiles) {
+            int group = occurrences.merge(moduleName(file), 1, Integer::sum) - 1;
+            if (group == groups.size()) {
+                groups.add(new LinkedHashSet<>());
+            }
+            groups.get(group).add(file);
+        }
+        return groups;
+    }
+
+    /**
+     * The module name Mypy derives from a file path, crawling up the parent directories that are packages.
+     *
+     * @param file the file path.
+     * @return the fully qualified module name.
+     */
+    static String moduleName(final String file) {
+        File path = new File(file);
+        String name = path.getName();
+        int extension = name.lastIndexOf('.');
+        name = extension > 0 ? name.substring(0, extension) : name;
+        File directory = path.getParentFile();
+        if (INIT_MODULE.equals(name) && directory != null) {
+            name = directory.getName();
+            directory = directory.getParentFile();
+        }
+        while (directory != null && isPackage(directory)) {
+            name = directory.getName() + "." + name;
+            directory = directory.getParentFile();
+        }
+        return name;
+    }
+
+    private static boolean isPackage(final File directory) {
+        for (String initFile : INIT_FILES) {
+            if (new File(directory, initFile).isFile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Partition the files along their package directories.
+     *
+     * @param files      the file paths.
+     * @param shardCount the maximum number of partitions.
+     * @return the non-empty partitions.
+     */
+    static List<Set<String>> partition(final Collection<String> files, final int shardCount) {
+        Map<String, List<String>> packages = new TreeMap<>();
+        for (String file : files) {
+            packages.computeIfAbsent(parentPath(file), key -> new ArrayList<>()).add(file);
+        }
+
+        int fairShare = Math.max(1, (files.size() + shardCount - 1) / shardCount);
+        List<List<String>> groups = new ArrayList<>();
+        for (List<String> packageFiles : packages.values()) {
+            packageFiles.sort(Comparator.naturalOrder());
+            for (int i = 0; i < packageFiles.size(); i += fairShare) {
+                groups.add(packageFiles.subList(i, Math.min(i + fairShare, packageFiles.size())));
+            }
+        }
+        groups.sort(Comparator.comparingInt(List<String>::size).reversed());
+
+        List<Set<String>> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new LinkedHashSet<>());
+        }
+        for (List<String> group : groups) {
+            Set<String> leastLoaded = shards.get(0);
+            for (Set<String> shard : shards) {
+                if (shard.size() < leastLoaded.size()) {
+                    leastLoaded = shard;
+                }
+            }
+            leastLoaded.addAll(group);
+        }
+        shards.removeIf(Set::isEmpty);
+        return shards;
+    }
+
+    /**
+     * A key of a partition which doesn't depend on its position among the partitions of the scan, so that a
+     * partition of the same packages reuses its cache from one scan to the next.
+     *
+     * @param shard the file paths of the partition.
+     * @return the key, derived from the package directories of the partition.
+     */
+    static String shardKey(final Collection<String> shard) {
+        Set<String> packages = new TreeSet<>();
+        for (String file : shard) {
+            packages.add(parentPath(file));
+        }
+        return Hashes.hash(packages.toArray(new String[0])).substring(0, SHARD_KEY_LENGTH);
+    }
+
+    private static String parentPath(final String file) {
+        int separator = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'));
+        return separator > 0 ? file.substring(0, separator) : "";
+    }
+}
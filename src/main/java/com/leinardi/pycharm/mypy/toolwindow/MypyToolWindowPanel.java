@@ -559,6 +559,17 @@ public class MypyToolWindowPanel extends JPanel implements DumbAware {
         clearProgress();
     }
 
+    /**
+     * Add the passed results to the ones already displayed, while a scan is still in progress.
+     *
+     * @param results the map of checked files to the problem descriptors found so far.
+     */
+    public void displayPartialResults(final Map<PsiFile, List<Problem>> results) {
+        treeModel.addResults(results, getDisplayedSeverities());
+
+        expandTree();
+    }
+
     public boolean isDisplayingErrors() {
         return displayingErrors;
     }
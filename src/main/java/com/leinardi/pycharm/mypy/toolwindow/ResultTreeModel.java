@@ -28,6 +28,7 @@ import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeNode;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +43,12 @@ public class ResultTreeModel extends DefaultTreeModel {
 
     private final DefaultMutableTreeNode visibleRootNode;
 
+    /**
+     * The file nodes and problem counts of the results added by {@link #addResults}, while a scan is in progress.
+     */
+    private final Map<PsiFile, TogglableTreeNode> partialFileNodes = new HashMap<>();
+    private final Map<PsiFile, int[]> partialFileCounts = new HashMap<>();
+
     public ResultTreeModel() {
         super(new DefaultMutableTreeNode());
 
@@ -52,6 +59,7 @@ public class ResultTreeModel extends DefaultTreeModel {
     }
 
     public void clear() {
+        clearPartialResults();
         visibleRootNode.removeAllChildren();
         nodeStructureChanged(visibleRootNode);
     }
@@ -160,6 +168,7 @@ public class ResultTreeModel extends DefaultTreeModel {
      */
     public void setModel(final Map<PsiFile, List<Problem>> results,
                          final SeverityLevel... levels) {
+        clearPartialResults();
         visibleRootNode.removeAllChildren();
 
         boolean hasProblems = false;
@@ -204,6 +213,60 @@ public class ResultTreeModel extends DefaultTreeModel {
         nodeStructureChanged(visibleRootNode);
     }
 
+    /**
+     * Add the passed results to the displayed model, as they are reported by a scan in progress.
+     * <p>
+     * The model is rebuilt from scratch by {@link #setModel} once the scan completes.
+     *
+     * @param results the problems found since the last call.
+     * @param levels  the levels to display.
+     */
+    public void addResults(final Map<PsiFile, List<Problem>> results,
+                           final SeverityLevel... levels) {
+        for (final PsiFile file : sortedFileNames(results)) {
+            final List<Problem> problems = results.get(file);
+            if (problems == null || problems.isEmpty()) {
+                continue;
+            }
+
+            TogglableTreeNode fileNode = partialFileNodes.get(file);
+            if (fileNode == null) {
+                fileNode = new TogglableTreeNode();
+                partialFileNodes.put(file, fileNode);
+                partialFileCounts.put(file, new int[SeverityLevel.values().length]);
+                visibleRootNode.add(fileNode);
+            }
+
+            final int[] fileCounts = partialFileCounts.get(file);
+            for (final Problem problem : problems) {
+                final TogglableTreeNode problemNode = new TogglableTreeNode(new ResultTreeNode(file, problem));
+                problemNode.setVisible(contains(levels, problem.severityLevel()));
+                fileNode.add(problemNode);
+                fileCounts[problem.severityLevel().ordinal()]++;
+            }
+            fileNode.setUserObject(new ResultTreeNode(file.getName(), fileCounts));
+        }
+
+        if (!partialFileNodes.isEmpty()) {
+            int[] totalCounts = new int[SeverityLevel.values().length];
+            for (final int[] fileCounts : partialFileCounts.values()) {
+                for (int i = 0; i < totalCounts.length; i++) {
+                    totalCounts[i] += fileCounts[i];
+                }
+            }
+            setRootText(StringUtil.pluralize(
+                    MypyBundle.message("plugin.results.scan-results",
+                            concatProblems(totalCounts),
+                            partialFileNodes.size()), partialFileNodes.size()));
+        }
+        nodeStructureChanged(visibleRootNode);
+    }
+
+    private void clearPartialResults() {
+        partialFileNodes.clear();
+        partialFileCounts.clear();
+    }
+
     private Iterable<PsiFile> sortedFileNames(final Map<PsiFile, List<Problem>> results) {
         if (results == null || results.isEmpty()) {
             return new ArrayList<>();
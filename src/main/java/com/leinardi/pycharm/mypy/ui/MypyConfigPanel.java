@@ -20,6 +20,8 @@ import com.intellij.openapi.fileChooser.FileChooserDescriptor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.TextComponentAccessor;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
+import com.intellij.ui.JBIntSpinner;
+import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBTextField;
 import com.leinardi.pycharm.mypy.MypyBundle;
 import com.leinardi.pycharm.mypy.MypyConfigService;
@@ -34,11 +36,18 @@ import javax.swing.JPanel;
 import java.awt.event.ActionEvent;
 
 public class MypyConfigPanel {
+    private static final int MAX_SCAN_PROCESSES = 64;
+
     private JPanel rootPanel;
     private JButton testButton;
     private com.intellij.openapi.ui.TextFieldWithBrowseButton mypyPathField;
     private com.intellij.openapi.ui.TextFieldWithBrowseButton mypyConfigFilePathField;
     private JBTextField argumentsField;
+    private JBCheckBox useDaemonCheckBox;
+    private JBIntSpinner scanProcessesSpinner;
+    private JBCheckBox sqliteCacheCheckBox;
+    private JBCheckBox fineGrainedCacheCheckBox;
+    private JBCheckBox useShadowFilesCheckBox;
     private Project project;
 
     public MypyConfigPanel(Project project) {
@@ -66,6 +75,11 @@ public class MypyConfigPanel {
                 TextComponentAccessor.TEXT_FIELD_WHOLE_TEXT);
         argumentsField.setText(mypyConfigService.getMypyArguments());
         argumentsField.getEmptyText().setText(MypyBundle.message("config.optional"));
+        useDaemonCheckBox.setSelected(mypyConfigService.isUseDaemon());
+        scanProcessesSpinner.setNumber(mypyConfigService.getScanProcesses());
+        sqliteCacheCheckBox.setSelected(mypyConfigService.isSqliteCache());
+        fineGrainedCacheCheckBox.setSelected(mypyConfigService.isFineGrainedCache());
+        useShadowFilesCheckBox.setSelected(mypyConfigService.isUseShadowFiles());
     }
 
     public JPanel getPanel() {
@@ -92,6 +106,26 @@ public class MypyConfigPanel {
         return argumentsField.getText();
     }
 
+    public boolean isUseDaemon() {
+        return useDaemonCheckBox.isSelected();
+    }
+
+    public int getScanProcesses() {
+        return scanProcessesSpinner.getNumber();
+    }
+
+    public boolean isSqliteCache() {
+        return sqliteCacheCheckBox.isSelected();
+    }
+
+    public boolean isFineGrainedCache() {
+        return fineGrainedCacheCheckBox.isSelected();
+    }
+
+    public boolean isUseShadowFiles() {
+        return useShadowFilesCheckBox.isSelected();
+    }
+
     @SuppressWarnings("unused")
     private void createUIComponents() {
         JBTextField autodetectTextField = new JBTextField();
@@ -101,6 +135,7 @@ public class MypyConfigPanel {
         JBTextField optionalTextField = new JBTextField();
         optionalTextField.getEmptyText().setText(MypyBundle.message("config.optional"));
         mypyConfigFilePathField = new TextFieldWithBrowseButton(optionalTextField);
+        scanProcessesSpinner = new JBIntSpinner(0, 0, MAX_SCAN_PROCESSES);
     }
 
     private final class TestAction extends AbstractAction {
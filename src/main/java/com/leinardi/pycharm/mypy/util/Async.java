@@ -19,17 +19,34 @@ package com.leinardi.pycharm.mypy.util;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
-import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 public final class Async {
     private static final Logger LOG = Logger.getInstance(Async.class);
 
-    private static final int FIFTY_MS = 50;
+    /**
+     * The timeout of {@link #await} waiting as long as the future runs.
+     */
+    public static final long NO_TIMEOUT = 0L;
+
+    // the cancellation hooks of the task running on the current thread
+    private static final ThreadLocal<CancellationHooks> CURRENT_HOOKS = new ThreadLocal<>();
 
     private Async() {
     }
@@ -39,39 +56,168 @@ public final class Async {
                                       @Nullable final T defaultValue,
                                       final long timeoutInMs) {
         try {
-            return whenFinished(executeOnPooledThread(callable), timeoutInMs).get();
+            return await(executeOnPooledThread(callable), timeoutInMs);
 
         } catch (Exception e) {
             return defaultValue;
         }
     }
 
-    public static <T> Future<T> executeOnPooledThread(final Callable<T> callable) {
-        return ApplicationManager.getApplication().executeOnPooledThread(callable);
+    /**
+     * Run a task on a pooled thread. Cancelling the returned future runs the {@link #whenCancelled} hooks of the task,
+     * then interrupts it.
+     *
+     * @param callable the task.
+     * @param <T>      the type of the result.
+     * @return the result of the task.
+     */
+    public static <T> CompletableFuture<T> executeOnPooledThread(@NotNull final Callable<T> callable) {
+        return execute(ApplicationManager.getApplication()::executeOnPooledThread, callable);
     }
 
-    public static <T> Future<T> whenFinished(final Future<T> future,
-                                             final long timeoutInMs) {
-        long elapsedTime = 0;
-        while (!future.isDone() && !future.isCancelled()) {
-            ProgressManager.checkCanceled();
-            elapsedTime += waitFor(FIFTY_MS);
-
-            if (timeoutInMs > 0 && elapsedTime >= timeoutInMs) {
-                LOG.debug("Async task exhausted timeout of " + timeoutInMs + "ms, cancelling.");
-                future.cancel(true);
-                throw new ProcessCanceledException();
-            }
+    /**
+     * Run a task with an executor, cancelled as {@link #executeOnPooledThread}.
+     *
+     * @param executor the executor running the task.
+     * @param callable the task.
+     * @param <T>      the type of the result.
+     * @return the result of the task.
+     */
+    public static <T> CompletableFuture<T> submit(@NotNull final ExecutorService executor,
+                                                  @NotNull final Callable<T> callable) {
+        return execute(executor::submit, callable);
+    }
+
+    /**
+     * Register a hook run as soon as the task running on the current thread is cancelled, e.g. to kill a process it
+     * waits for: the task is notified of its cancellation rather than polling for it. The hook runs right away if the
+     * task is already cancelled, and never if the current thread doesn't run a task of this class.
+     *
+     * @param hook the hook, run on the cancelling thread.
+     * @return the unregistration of the hook, to run once it is not needed anymore.
+     */
+    public static Runnable whenCancelled(@NotNull final Runnable hook) {
+        final CancellationHooks hooks = CURRENT_HOOKS.get();
+        if (hooks == null) {
+            return () -> {
+            };
         }
-        return future;
+        hooks.add(hook);
+        return () -> hooks.remove(hook);
     }
 
-    private static long waitFor(final int millis) {
+    @SuppressWarnings("FutureReturnValueIgnored")
+    private static <T> CompletableFuture<T> execute(final Function<Runnable, Future<?>> executor,
+                                                    final Callable<T> callable) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final CancellationHooks hooks = new CancellationHooks();
+        final Future<?> task = executor.apply(() -> {
+            final CancellationHooks previousHooks = CURRENT_HOOKS.get();
+            CURRENT_HOOKS.set(hooks);
+            try {
+                result.complete(callable.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                CURRENT_HOOKS.set(previousHooks);
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                hooks.cancel();
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Wait for a future, returning as soon as it completes.
+     * <p>
+     * The cancellation travels both ways: cancelling the progress indicator of the calling thread, if any, cancels
+     * the future, and a cancelled future cancels the caller. The future is also cancelled when the timeout expires.
+     * The future must not be shared with other callers, which would be cancelled as well.
+     *
+     * @param future      the future to wait for.
+     * @param timeoutInMs the timeout in milliseconds, or {@link #NO_TIMEOUT}.
+     * @param <T>         the type of the result.
+     * @return the result of the future.
+     * @throws ExecutionException       if the future completed exceptionally.
+     * @throws ProcessCanceledException if the caller or the future is cancelled, or the timeout expires.
+     */
+    public static <T> T await(@NotNull final CompletableFuture<T> future,
+                              final long timeoutInMs) throws ExecutionException {
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        final ScheduledFuture<?> timeout = timeoutInMs > 0
+                ? AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> {
+                    timedOut.set(true);
+                    future.cancel(true);
+                }, timeoutInMs, TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            // waits for a future which always completes normally: the outcome is read from the future itself
+            ProgressIndicatorUtils.awaitWithCheckCanceled(future.handle((value, error) -> null));
+        } catch (RuntimeException e) {
+            // the caller is cancelled (or interrupted): nothing is registered on its indicator, to remove
+            future.cancel(true);
+            throw e;
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
         try {
-            Thread.sleep(millis);
-        } catch (InterruptedException ignored) {
+            return future.get();
+
+        } catch (CancellationException e) {
+            if (timedOut.get()) {
+                LOG.debug("Async task exhausted timeout of " + timeoutInMs + "ms, cancelled.");
+            }
+            throw new ProcessCanceledException(e);
+
+        } catch (InterruptedException e) {
+            // not reached: the future is done
             Thread.currentThread().interrupt();
+            throw new ProcessCanceledException(e);
+        }
+    }
+
+    /**
+     * The hooks run when a task is cancelled.
+     */
+    private static final class CancellationHooks {
+        private final List<Runnable> hooks = new ArrayList<>();
+        private boolean cancelled;
+
+        void add(final Runnable hook) {
+            synchronized (this) {
+                if (!cancelled) {
+                    hooks.add(hook);
+                    return;
+                }
+            }
+            hook.run();
+        }
+
+        synchronized void remove(final Runnable hook) {
+            hooks.remove(hook);
+        }
+
+        void cancel() {
+            final List<Runnable> cancelledHooks;
+            synchronized (this) {
+                cancelled = true;
+                cancelledHooks = new ArrayList<>(hooks);
+                hooks.clear();
+            }
+            for (Runnable hook : cancelledHooks) {
+                try {
+                    hook.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Error in a cancellation hook", e);
+                }
+            }
         }
-        return millis;
     }
 }
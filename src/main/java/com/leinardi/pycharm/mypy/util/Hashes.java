@@ -0,0 +1,69 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-256 hashes keying the caches of the plugin: results, cache directories, scans in progress.
+ */
+public final class Hashes {
+    private static final char SEPARATOR = '\0';
+
+    private Hashes() {
+    }
+
+    /**
+     * The SHA-256 hash of some text.
+     *
+     * @param parts the text to hash.
+     * @return the hash, as an hexadecimal string.
+     */
+    public static String hash(final CharSequence... parts) {
+        MessageDigest digest = newDigest();
+        for (CharSequence part : parts) {
+            digest.update(part.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) SEPARATOR);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return a new SHA-256 digest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param bytes a digest.
+     * @return the digest, as an hexadecimal string.
+     */
+    public static String toHex(final byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -19,7 +19,6 @@ package com.leinardi.pycharm.mypy.util;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectUtil;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
@@ -31,11 +30,13 @@ import java.util.Optional;
  * Locate and/or create temporary directories for use by this plugin.
  */
 public class TempDirProvider {
-    public String forPersistedPsiFile(final PsiFile tempPsiFile) {
+    private static final File SHARED_MEMORY_DIR = new File("/dev/shm");
+
+    public String forPersistedFile(final Project project, final VirtualFile tempFile) {
         String systemTempDir = System.getProperty("java.io.tmpdir");
-        if (OS.isWindows() && driveLetterOf(systemTempDir) != driveLetterOf(pathOf(tempPsiFile))) {
+        if (OS.isWindows() && driveLetterOf(systemTempDir) != driveLetterOf(tempFile.getPath())) {
             // Some tool on Windows requires the files to be on the same drive
-            final File projectTempDir = temporaryDirectoryLocationFor(tempPsiFile.getProject());
+            final File projectTempDir = temporaryDirectoryLocationFor(project);
             if (projectTempDir.exists() || projectTempDir.mkdirs()) {
                 projectTempDir.deleteOnExit();
                 return projectTempDir.getAbsolutePath();
@@ -44,6 +45,21 @@ public class TempDirProvider {
         return systemTempDir;
     }
 
+    /**
+     * The directory for the snapshots of unsaved files: the shared memory file system on Linux, so that writing a
+     * snapshot never reaches the disk, otherwise {@link #forPersistedFile(Project, VirtualFile)}.
+     *
+     * @param project the project of the file.
+     * @param file    the file to snapshot.
+     * @return the path of the directory.
+     */
+    public String forSnapshots(final Project project, final VirtualFile file) {
+        if (SHARED_MEMORY_DIR.isDirectory() && SHARED_MEMORY_DIR.canWrite()) {
+            return SHARED_MEMORY_DIR.getPath();
+        }
+        return forPersistedFile(project, file);
+    }
+
     @NotNull
     private File temporaryDirectoryLocationFor(final Project project) {
         return getIdeaFolder(project).map(vf -> new File(vf.getPath(), "mypymypy.tmp"))
@@ -69,13 +85,4 @@ public class TempDirProvider {
         return '?';
     }
 
-    private String pathOf(@NotNull final PsiFile file) {
-        return virtualFileOf(file).map(VirtualFile::getPath).orElseThrow(() -> new IllegalStateException("PSIFile " +
-                "does not have associated virtual file: " + file));
-    }
-
-    private Optional<VirtualFile> virtualFileOf(final PsiFile file) {
-        return Optional.ofNullable(file.getVirtualFile());
-    }
-
 }
@@ -17,10 +17,13 @@
 package com.leinardi.pycharm.mypy.util;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ContentIterator;
 import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileFilter;
 import com.intellij.openapi.vfs.VirtualFileVisitor;
+import com.intellij.util.Processor;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
@@ -76,14 +79,50 @@ public class VfUtil {
         return list;
     }
 
-    public static List<VirtualFile> flattenFiles(final VirtualFile[] files) {
-        final List<VirtualFile> flattened = new ArrayList<>();
+    /**
+     * The Python files of the project content under some directories. The excluded and library directories are
+     * skipped without visiting their children, and the file types are checked before any PSI is loaded. This is
+     * expected to be called from a read action.
+     *
+     * @param project the current project.
+     * @param roots   the directories (or files) to look into.
+     * @return the Python files.
+     */
+    public static List<VirtualFile> collectPythonFiles(Project project, VirtualFile[] roots) {
+        List<VirtualFile> list = new ArrayList<>();
+        processPythonFiles(project, roots, list::add);
+        return list;
+    }
 
-        if (files != null) {
-            for (final VirtualFile file : files) {
-                flattened.addAll(VfUtil.getAllSubFiles(file));
+    /**
+     * Stream the Python files of the project content under some directories to a consumer, as they are found: see
+     * {@link #collectPythonFiles}. A root which is a Python file is passed as is, even out of the project content.
+     *
+     * @param project   the current project.
+     * @param roots     the directories (or files) to look into.
+     * @param processor the consumer of the files, returning false to stop.
+     * @return false if the processor stopped the iteration.
+     */
+    public static boolean processPythonFiles(Project project, VirtualFile[] roots,
+                                             Processor<? super VirtualFile> processor) {
+        ProjectFileIndex projectFileIndex = ProjectFileIndex.SERVICE.getInstance(project);
+        // a rejected directory is not visited: the index already skips the excluded ones
+        VirtualFileFilter filter = file -> file.isDirectory()
+                ? !projectFileIndex.isInLibrary(file)
+                : FileTypes.isPython(file.getFileType());
+        ContentIterator iterator = file -> file.isDirectory() || processor.process(file);
+        for (VirtualFile root : roots) {
+            if (root == null) {
+                continue;
+            }
+            if (!root.isDirectory()) {
+                if (FileTypes.isPython(root.getFileType()) && !processor.process(root)) {
+                    return false;
+                }
+            } else if (!projectFileIndex.iterateContentUnderDirectory(root, iterator, filter)) {
+                return false;
             }
         }
-        return flattened;
+        return true;
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.leinardi.pycharm.mypy.checker.Problem;
+import com.leinardi.pycharm.mypy.checker.ScanFiles;
+import com.leinardi.pycharm.mypy.checker.ScannerListener;
+import com.leinardi.pycharm.mypy.exception.MypyPluginException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MypyPluginTest extends BasePlatformTestCase {
+    private static final long TIMEOUT_S = 10;
+    private static final long CANCELLATION_GRACE_MS = 200;
+
+    private final AtomicInteger scanCount = new AtomicInteger();
+    private final CountDownLatch scanStarted = new CountDownLatch(1);
+    private final CountDownLatch scanReleased = new CountDownLatch(1);
+    private final CountDownLatch scanInterrupted = new CountDownLatch(1);
+    private final Map<PsiFile, List<Problem>> scanResults = new HashMap<>();
+
+    public void testScanOfTheSameFilesIsJoined() throws Exception {
+        MypyPlugin plugin = getProject().getService(MypyPlugin.class);
+        VirtualFile file = myFixture.addFileToProject("file.py", "x = 1\n").getVirtualFile();
+
+        CompletableFuture<Map<PsiFile, List<Problem>>> first = runScan(plugin, file, null);
+        awaitLatch(scanStarted);
+        JoinListener joinListener = new JoinListener();
+        CompletableFuture<Map<PsiFile, List<Problem>>> second = runScan(plugin, file, joinListener);
+        awaitLatch(joinListener.joined);
+        scanReleased.countDown();
+
+        assertSame(scanResults, first.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertSame(scanResults, second.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertSame(scanResults, joinListener.results);
+        assertEquals(1, scanCount.get());
+    }
+
+    public void testScanIsCancelledOnceLeftByAllItsCallers() throws Exception {
+        MypyPlugin plugin = getProject().getService(MypyPlugin.class);
+        VirtualFile file = myFixture.addFileToProject("file.py", "x = 1\n").getVirtualFile();
+
+        CompletableFuture<Map<PsiFile, List<Problem>>> first = runScan(plugin, file, null);
+        awaitLatch(scanStarted);
+        JoinListener joinListener = new JoinListener();
+        CompletableFuture<Map<PsiFile, List<Problem>>> second = runScan(plugin, file, joinListener);
+        awaitLatch(joinListener.joined);
+
+        first.cancel(true);
+        assertFalse(scanInterrupted.await(CANCELLATION_GRACE_MS, TimeUnit.MILLISECONDS));
+        assertFalse(second.isDone());
+
+        second.cancel(true);
+        awaitLatch(scanInterrupted);
+        assertEquals(1, scanCount.get());
+    }
+
+    public void testScanIsStartedAgainOnceCompleted() throws Exception {
+        MypyPlugin plugin = getProject().getService(MypyPlugin.class);
+        VirtualFile file = myFixture.addFileToProject("file.py", "x = 1\n").getVirtualFile();
+        scanReleased.countDown();
+
+        runScan(plugin, file, null).get(TIMEOUT_S, TimeUnit.SECONDS);
+        runScan(plugin, file, null).get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertEquals(2, scanCount.get());
+    }
+
+    private CompletableFuture<Map<PsiFile, List<Problem>>> runScan(final MypyPlugin plugin, final VirtualFile file,
+                                                                   final ScannerListener listener) {
+        Callable<Map<PsiFile, List<Problem>>> scan = () -> {
+            scanCount.incrementAndGet();
+            scanStarted.countDown();
+            try {
+                scanReleased.await();
+            } catch (InterruptedException e) {
+                scanInterrupted.countDown();
+                return Collections.emptyMap();
+            }
+            return scanResults;
+        };
+        return plugin.runScan(new ScanFiles(plugin, Collections.singletonList(file)), listener, scan);
+    }
+
+    private static void awaitLatch(final CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The listener of a caller joining a scan in progress.
+     */
+    private static final class JoinListener implements ScannerListener {
+        private final CountDownLatch joined = new CountDownLatch(1);
+        private volatile Map<PsiFile, List<Problem>> results;
+
+        @Override
+        public void scanStarting(final List<VirtualFile> filesToScan) {
+            joined.countDown();
+        }
+
+        @Override
+        public void filesScanned(final int count) {
+        }
+
+        @Override
+        public void problemsFound(final Map<PsiFile, List<Problem>> problems) {
+        }
+
+        @Override
+        public void scanCompletedSuccessfully(final Map<PsiFile, List<Problem>> scanResults) {
+            results = scanResults;
+        }
+
+        @Override
+        public void scanFailedWithError(final MypyPluginException error) {
+        }
+    }
+}
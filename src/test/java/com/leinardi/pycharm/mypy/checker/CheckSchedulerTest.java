@@ -0,0 +1,146 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CheckSchedulerTest extends BasePlatformTestCase {
+    private static final long TIMEOUT_S = 10;
+
+    private final List<List<VirtualFile>> scannedBatches = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<Map<PsiFile, List<Problem>>>> scans = new CopyOnWriteArrayList<>();
+
+    public void testRequestsOfTheSameWindowAreCheckedInOneScan() throws Exception {
+        PsiFile first = myFixture.addFileToProject("first.py", "x = 1\n");
+        PsiFile second = myFixture.addFileToProject("second.py", "y = 2\n");
+        CheckScheduler scheduler = new CheckScheduler(files -> {
+            scannedBatches.add(new ArrayList<>(files));
+            Map<PsiFile, List<Problem>> problems = new HashMap<>();
+            problems.put(first, Collections.emptyList());
+            problems.put(second, Collections.emptyList());
+            return CompletableFuture.completedFuture(problems);
+        });
+
+        Future<Map<PsiFile, List<Problem>>> firstCheck = check(scheduler, first);
+        Future<Map<PsiFile, List<Problem>>> secondCheck = check(scheduler, second);
+
+        assertEquals(Collections.singleton(first), firstCheck.get(TIMEOUT_S, TimeUnit.SECONDS).keySet());
+        assertEquals(Collections.singleton(second), secondCheck.get(TIMEOUT_S, TimeUnit.SECONDS).keySet());
+        assertEquals(1, scannedBatches.size());
+        assertSameElements(scannedBatches.get(0), first.getVirtualFile(), second.getVirtualFile());
+    }
+
+    public void testRequestsOfLaterWindowsAreCheckedInAnotherScan() throws Exception {
+        PsiFile file = myFixture.addFileToProject("file.py", "x = 1\n");
+        CheckScheduler scheduler = new CheckScheduler(files -> {
+            scannedBatches.add(new ArrayList<>(files));
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        });
+
+        check(scheduler, file).get(TIMEOUT_S, TimeUnit.SECONDS);
+        check(scheduler, file).get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertEquals(2, scannedBatches.size());
+    }
+
+    public void testScanIsCancelledWhenEveryRequestLeft() throws Exception {
+        PsiFile file = myFixture.addFileToProject("file.py", "x = 1\n");
+        CheckScheduler scheduler = new CheckScheduler(this::pendingScan);
+        ProgressIndicatorBase indicator = new ProgressIndicatorBase();
+
+        Future<Map<PsiFile, List<Problem>>> check = check(scheduler, file, indicator);
+        CompletableFuture<Map<PsiFile, List<Problem>>> scan = awaitScan();
+        indicator.cancel();
+
+        assertCancelled(check);
+        assertTrue(scan.isCancelled());
+    }
+
+    public void testScanIsKeptWhileARequestWaits() throws Exception {
+        PsiFile first = myFixture.addFileToProject("first.py", "x = 1\n");
+        PsiFile second = myFixture.addFileToProject("second.py", "y = 2\n");
+        CheckScheduler scheduler = new CheckScheduler(this::pendingScan);
+        ProgressIndicatorBase firstIndicator = new ProgressIndicatorBase();
+
+        Future<Map<PsiFile, List<Problem>>> firstCheck = check(scheduler, first, firstIndicator);
+        Future<Map<PsiFile, List<Problem>>> secondCheck = check(scheduler, second);
+        CompletableFuture<Map<PsiFile, List<Problem>>> scan = awaitScan();
+        firstIndicator.cancel();
+        assertCancelled(firstCheck);
+        assertFalse(scan.isCancelled());
+
+        Map<PsiFile, List<Problem>> problems = new HashMap<>();
+        problems.put(second, Collections.emptyList());
+        scan.complete(problems);
+        assertEquals(Collections.singleton(second), secondCheck.get(TIMEOUT_S, TimeUnit.SECONDS).keySet());
+        assertEquals(1, scans.size());
+    }
+
+    private CompletableFuture<Map<PsiFile, List<Problem>>> pendingScan(final List<VirtualFile> files) {
+        CompletableFuture<Map<PsiFile, List<Problem>>> scan = new CompletableFuture<>();
+        scans.add(scan);
+        return scan;
+    }
+
+    private CompletableFuture<Map<PsiFile, List<Problem>>> awaitScan() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (scans.isEmpty()) {
+            assertTrue("The batch was never scanned", System.currentTimeMillis() < deadline);
+            Thread.sleep(CheckScheduler.COALESCE_WINDOW_MS / 10);
+        }
+        return scans.get(0);
+    }
+
+    private static Future<Map<PsiFile, List<Problem>>> check(final CheckScheduler scheduler, final PsiFile psiFile) {
+        return check(scheduler, psiFile, new ProgressIndicatorBase());
+    }
+
+    private static Future<Map<PsiFile, List<Problem>>> check(final CheckScheduler scheduler, final PsiFile psiFile,
+                                                             final ProgressIndicatorBase indicator) {
+        return ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            List<Map<PsiFile, List<Problem>>> result = new ArrayList<>();
+            ProgressManager.getInstance().runProcess(() -> result.add(scheduler.check(psiFile)), indicator);
+            return result.get(0);
+        });
+    }
+
+    private static void assertCancelled(final Future<?> check) throws Exception {
+        try {
+            check.get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail("The check was not cancelled");
+        } catch (ExecutionException e) {
+            assertInstanceOf(e.getCause(), ProcessCanceledException.class);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.analysis.AnalysisScope;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.leinardi.pycharm.mypy.MypyPlugin;
+import com.leinardi.pycharm.mypy.exception.MypyPluginException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class InspectionScanTest extends BasePlatformTestCase {
+    private static final long TIMEOUT_S = 10;
+
+    private final AtomicInteger scanCount = new AtomicInteger();
+
+    public void testFailedScanIsStartedAgain() throws Exception {
+        PsiFile psiFile = myFixture.addFileToProject("file.py", "x = 1\n");
+        InspectionScan inspectionScan = inspectionScanOf(psiFile, files -> {
+            if (scanCount.incrementAndGet() == 1) {
+                throw new MypyPluginException("Mypy failed");
+            }
+            return Collections.singletonMap(psiFile, Collections.emptyList());
+        });
+
+        Map<PsiFile, List<Problem>> problems = check(inspectionScan, psiFile).get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singleton(psiFile), problems.keySet());
+        assertEquals(2, scanCount.get());
+    }
+
+    public void testFilesFailOnceTheScanFailedTooManyTimes() throws Exception {
+        PsiFile psiFile = myFixture.addFileToProject("file.py", "x = 1\n");
+        InspectionScan inspectionScan = inspectionScanOf(psiFile, files -> {
+            scanCount.incrementAndGet();
+            throw new MypyPluginException("Mypy failed");
+        });
+
+        assertFailsWith(check(inspectionScan, psiFile), MypyPluginException.class);
+        assertEquals(InspectionScan.MAX_FAILED_SCANS, scanCount.get());
+
+        // the next files fail at once
+        assertFailsWith(check(inspectionScan, psiFile), MypyPluginException.class);
+        assertEquals(InspectionScan.MAX_FAILED_SCANS, scanCount.get());
+    }
+
+    public void testScanCancelledByItselfCountsAsAFailure() throws Exception {
+        PsiFile psiFile = myFixture.addFileToProject("file.py", "x = 1\n");
+        InspectionScan inspectionScan = inspectionScanOf(psiFile, files -> {
+            scanCount.incrementAndGet();
+            throw new ProcessCanceledException();
+        });
+
+        assertFailsWith(check(inspectionScan, psiFile), ProcessCanceledException.class);
+        assertEquals(InspectionScan.MAX_FAILED_SCANS, scanCount.get());
+    }
+
+    private InspectionScan inspectionScanOf(final PsiFile psiFile,
+                                            final Function<List<VirtualFile>, Map<PsiFile, List<Problem>>> scanner) {
+        return new InspectionScan(getProject().getService(MypyPlugin.class), new AnalysisScope(psiFile), scanner);
+    }
+
+    private static Future<Map<PsiFile, List<Problem>>> check(final InspectionScan inspectionScan,
+                                                             final PsiFile psiFile) {
+        return ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            List<Map<PsiFile, List<Problem>>> result = new ArrayList<>();
+            ProgressManager.getInstance().runProcess(() -> result.add(inspectionScan.check(psiFile)),
+                    new ProgressIndicatorBase());
+            return result.get(0);
+        });
+    }
+
+    private static void assertFailsWith(final Future<?> check, final Class<? extends Throwable> errorClass)
+            throws Exception {
+        try {
+            check.get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail("The check didn't fail");
+        } catch (ExecutionException e) {
+            assertInstanceOf(e.getCause(), errorClass);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.projectRoots.ProjectJdkTable;
+import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.projectRoots.impl.UnknownSdkType;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+
+public class MypyResultCacheTest extends BasePlatformTestCase {
+    private static final String FINGERPRINT = "fingerprint";
+
+    private MypyResultCache resultCache;
+    private VirtualFile first;
+    private VirtualFile second;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        first = myFixture.addFileToProject("first.py", "x = 1\n").getVirtualFile();
+        second = myFixture.addFileToProject("second.py", "y = 2\n").getVirtualFile();
+        resultCache = new MypyResultCache(getProject(), getTestRootDisposable());
+    }
+
+    public void testChangedFileKeepsItsOwnResults() throws IOException {
+        put(first, resultCache.getContentGeneration());
+        put(second, resultCache.getContentGeneration());
+
+        setText(first, "x = 2\n");
+
+        assertNotNull(resultCache.get(keyOf(first)));
+        assertNull(resultCache.get(keyOf(second)));
+    }
+
+    public void testScanStartedBeforeAChangeOnlyCachesTheChangedFile() throws IOException {
+        long scanContentGeneration = resultCache.getContentGeneration();
+
+        setText(second, "y = 3\n");
+        put(first, scanContentGeneration);
+        put(second, scanContentGeneration);
+
+        assertNull(resultCache.get(keyOf(first)));
+        assertNotNull(resultCache.get(keyOf(second)));
+    }
+
+    public void testCreatingAPythonFileClearsTheCache() {
+        put(first, resultCache.getContentGeneration());
+
+        myFixture.addFileToProject("third.py", "z = 3\n");
+
+        assertEquals(0, resultCache.size());
+    }
+
+    public void testDeletingAPythonFileClearsTheCache() throws IOException {
+        put(first, resultCache.getContentGeneration());
+
+        WriteAction.runAndWait(() -> second.delete(this));
+
+        assertEquals(0, resultCache.size());
+    }
+
+    public void testOtherFilesKeepTheCache() {
+        put(first, resultCache.getContentGeneration());
+
+        myFixture.addFileToProject("notes.txt", "notes\n");
+
+        assertEquals(1, resultCache.size());
+    }
+
+    public void testScanStartedBeforeAnInvalidationCachesNothing() {
+        long scanContentGeneration = resultCache.getContentGeneration();
+
+        myFixture.addFileToProject("third.py", "z = 3\n");
+        put(first, scanContentGeneration);
+
+        assertEquals(0, resultCache.size());
+    }
+
+    public void testChangingTheProjectSdkClearsTheCache() {
+        ProjectRootManager projectRootManager = ProjectRootManager.getInstance(getProject());
+        Sdk previousSdk = projectRootManager.getProjectSdk();
+        Sdk sdk = ProjectJdkTable.getInstance().createSdk("Mypy Cache Test", UnknownSdkType.getInstance("MypyTest"));
+        WriteAction.runAndWait(() -> ProjectJdkTable.getInstance().addJdk(sdk, getTestRootDisposable()));
+        put(first, resultCache.getContentGeneration());
+
+        try {
+            WriteAction.runAndWait(() -> projectRootManager.setProjectSdk(sdk));
+
+            assertEquals(0, resultCache.size());
+        } finally {
+            WriteAction.runAndWait(() -> projectRootManager.setProjectSdk(previousSdk));
+        }
+    }
+
+    private void put(final VirtualFile file, final long scanContentGeneration) {
+        resultCache.put(keyOf(file), file.getPath(), Collections.emptyList(), scanContentGeneration);
+    }
+
+    private static String keyOf(final VirtualFile file) {
+        return MypyResultCache.key(FINGERPRINT, file.getPath(), "content");
+    }
+
+    private static void setText(final VirtualFile file, final String text) throws IOException {
+        WriteAction.runAndWait(() -> VfsUtil.saveText(file, text));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.checker;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileDocumentManagerListener;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.leinardi.pycharm.mypy.util.Hashes;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SnapshotStoreTest extends BasePlatformTestCase {
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long POLL_INTERVAL_MS = 10;
+
+    private final List<File> snapshotFiles = new ArrayList<>();
+    private SnapshotStore snapshotStore;
+    private VirtualFile virtualFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        snapshotStore = new SnapshotStore(getProject(), getTestRootDisposable());
+        virtualFile = myFixture.addFileToProject("file.py", "x = 1\n").getVirtualFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            Disposer.dispose(snapshotStore);
+            // the next test writes its snapshots to the same directory, deleted in the background
+            for (File snapshotFile : snapshotFiles) {
+                awaitDeleted(rootDirOf(snapshotFile));
+            }
+        } catch (Throwable e) {
+            addSuppressedException(e);
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testSnapshotIsReusedForTheSameContent() throws IOException {
+        SnapshotStore.Snapshot first = acquire("x = 2\n");
+        SnapshotStore.Snapshot second = acquire("x = 2\n");
+
+        assertSame(first, second);
+        assertEquals("x = 2\n", read(first.getFile()));
+    }
+
+    public void testConcurrentChecksOfDifferentContentsGetAdditionalSnapshots() throws Exception {
+        SnapshotStore.Snapshot first = acquire("x = 2\n");
+        SnapshotStore.Snapshot second = acquire("x = 3\n");
+
+        assertFalse(first.getFile().equals(second.getFile()));
+        assertEquals("x = 2\n", read(first.getFile()));
+        assertEquals("x = 3\n", read(second.getFile()));
+
+        snapshotStore.release(second);
+        awaitDeleted(second.getFile());
+        assertTrue(first.getFile().isFile());
+    }
+
+    public void testSnapshotIsKeptForTheNextCheckUntilTheFileIsSaved() throws Exception {
+        SnapshotStore.Snapshot snapshot = acquire("x = 2\n");
+        snapshotStore.release(snapshot);
+        assertTrue(snapshot.getFile().isFile());
+
+        Document document = FileDocumentManager.getInstance().getDocument(virtualFile);
+        assertNotNull(document);
+        ApplicationManager.getApplication().getMessageBus().syncPublisher(FileDocumentManagerListener.TOPIC)
+                .beforeDocumentSaving(document);
+
+        awaitDeleted(snapshot.getFile());
+    }
+
+    public void testSnapshotIsDroppedWhenTheFileIsClosed() throws Exception {
+        SnapshotStore.Snapshot snapshot = acquire("x = 2\n");
+        snapshotStore.release(snapshot);
+
+        getProject().getMessageBus().syncPublisher(FileEditorManagerListener.FILE_EDITOR_MANAGER)
+                .fileClosed(FileEditorManager.getInstance(getProject()), virtualFile);
+
+        awaitDeleted(snapshot.getFile());
+    }
+
+    public void testSnapshotInUseIsDeletedOnceReleased() throws IOException {
+        SnapshotStore.Snapshot snapshot = acquire("x = 2\n");
+
+        snapshotStore.drop(virtualFile.getPath());
+        assertTrue(snapshot.getFile().isFile());
+
+        snapshotStore.release(snapshot);
+        assertFalse(snapshot.getFile().exists());
+    }
+
+    public void testSnapshotKeepsTheByteOrderMark() throws IOException {
+        SnapshotStore.Snapshot snapshot = acquire("x = 2\n", StandardCharsets.UTF_8, CharsetToolkit.UTF8_BOM, "\n");
+
+        byte[] bytes = Files.readAllBytes(snapshot.getFile().toPath());
+        assertTrue(Arrays.equals(CharsetToolkit.UTF8_BOM,
+                Arrays.copyOf(bytes, CharsetToolkit.UTF8_BOM.length)));
+        assertEquals("x = 2\n", new String(bytes, CharsetToolkit.UTF8_BOM.length,
+                bytes.length - CharsetToolkit.UTF8_BOM.length, StandardCharsets.UTF_8));
+    }
+
+    public void testUnmappableCharactersAreReplaced() throws IOException {
+        SnapshotStore.Snapshot snapshot = acquire("x = '\u00e9'\n", StandardCharsets.US_ASCII, null, "\r\n");
+
+        assertEquals("x = '?'\r\n", new String(Files.readAllBytes(snapshot.getFile().toPath()),
+                StandardCharsets.US_ASCII));
+    }
+
+    private SnapshotStore.Snapshot acquire(final String content) throws IOException {
+        return acquire(content, StandardCharsets.UTF_8, null, "\n");
+    }
+
+    private SnapshotStore.Snapshot acquire(final String content, final Charset charset, @Nullable final byte[] bom,
+                                           final String lineSeparator) throws IOException {
+        SnapshotStore.Snapshot snapshot = snapshotStore.acquire(virtualFile, content, charset, bom, lineSeparator,
+                Hashes.hash(content, charset.name(), lineSeparator));
+        snapshotFiles.add(snapshot.getFile());
+        return snapshot;
+    }
+
+    private static File rootDirOf(final File snapshotFile) {
+        for (File dir = snapshotFile.getParentFile(); dir != null; dir = dir.getParentFile()) {
+            if (dir.getName().startsWith("mypy-snapshots-")) {
+                return dir;
+            }
+        }
+        return snapshotFile;
+    }
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void awaitDeleted(final File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (file.exists()) {
+            assertTrue("The snapshot " + file + " was never deleted", System.currentTimeMillis() < deadline);
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LineIndexTest {
+    @Test
+    public void testLineOffsetsWithMixedTerminators() {
+        String text = "a = 1\nb = 2\r\n\rc = 3";
+        LineIndex lineIndex = LineIndex.of(text, 1);
+
+        Assert.assertEquals(4, lineIndex.getLineCount());
+        Assert.assertEquals(0, lineIndex.getLineStartOffset(1));
+        Assert.assertEquals(6, lineIndex.getLineStartOffset(2));
+        Assert.assertEquals(11, lineIndex.getLineEndOffset(2));
+        Assert.assertEquals(13, lineIndex.getLineStartOffset(3));
+        Assert.assertEquals(13, lineIndex.getLineEndOffset(3));
+        Assert.assertEquals(text.indexOf('c') + 4, lineIndex.getOffset(4, 4));
+    }
+
+    @Test
+    public void testColumnIsClampedToTheEndOfLine() {
+        LineIndex lineIndex = LineIndex.of("x = 1\ny = 2\n", 1);
+
+        Assert.assertEquals(5, lineIndex.getOffset(1, 80));
+        Assert.assertEquals(lineIndex.getLineEndOffset(1), lineIndex.getOffset(1, 80));
+    }
+
+    @Test
+    public void testTabsAdvanceToTheNextTabStop() {
+        String text = "if x:\n\tab\tc = 1\n";
+        LineIndex expanded = LineIndex.of(text, 4);
+        LineIndex singleColumn = LineIndex.of(text, 1);
+
+        // "\tab\tc": 'a' is at column 4, 'c' at column 8
+        Assert.assertEquals(text.indexOf('a'), expanded.getOffset(2, 4));
+        Assert.assertEquals(text.indexOf('c'), expanded.getOffset(2, 8));
+        Assert.assertEquals(text.indexOf('c'), singleColumn.getOffset(2, 4));
+    }
+}
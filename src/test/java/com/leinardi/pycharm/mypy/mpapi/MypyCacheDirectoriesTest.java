@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class MypyCacheDirectoriesTest {
+    private static final long NOW = 1_700_000_000_000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testUnusedCachesAreEvicted() throws IOException {
+        File recent = createCache("recent", 100, NOW - DAY);
+        File old = createCache("old", 100, NOW - 40 * DAY);
+
+        long freed = MypyCacheDirectories.evict(temporaryFolder.getRoot(), NOW, 30 * DAY, Long.MAX_VALUE,
+                cacheDir -> false);
+
+        Assert.assertEquals(100, freed);
+        Assert.assertTrue(recent.exists());
+        Assert.assertFalse(old.exists());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCachesAreEvictedAboveTheSizeLimit() throws IOException {
+        File newest = createCache("newest", 100, NOW - DAY);
+        File middle = createCache("middle", 100, NOW - 2 * DAY);
+        File oldest = createCache("oldest", 100, NOW - 3 * DAY);
+
+        long freed = MypyCacheDirectories.evict(temporaryFolder.getRoot(), NOW, 30 * DAY, 250, cacheDir -> false);
+
+        Assert.assertEquals(100, freed);
+        Assert.assertTrue(newest.exists());
+        Assert.assertTrue(middle.exists());
+        Assert.assertFalse(oldest.exists());
+    }
+
+    @Test
+    public void testCachesInUseAreNotEvicted() throws IOException {
+        File newest = createCache("newest", 100, NOW - DAY);
+        File inUse = createCache("in-use", 100, NOW - 40 * DAY);
+        File oldest = createCache("oldest", 100, NOW - 41 * DAY);
+
+        long freed = MypyCacheDirectories.evict(temporaryFolder.getRoot(), NOW, 30 * DAY, 150,
+                cacheDir -> cacheDir.equals(inUse));
+
+        Assert.assertEquals(100, freed);
+        Assert.assertTrue(newest.exists());
+        Assert.assertTrue(inUse.exists());
+        Assert.assertFalse(oldest.exists());
+    }
+
+    @Test
+    public void testConcurrentProcessesDontShareACacheDirectory() {
+        File cacheDir = new File(temporaryFolder.getRoot(), "cache");
+
+        try (MypyCacheDirectories.Lease first = MypyCacheDirectories.lease(cacheDir);
+             MypyCacheDirectories.Lease second = MypyCacheDirectories.lease(cacheDir)) {
+            Assert.assertEquals(cacheDir, first.getDir());
+            Assert.assertEquals(new File(cacheDir, "concurrent-1"), second.getDir());
+        }
+        try (MypyCacheDirectories.Lease released = MypyCacheDirectories.lease(cacheDir)) {
+            Assert.assertEquals(cacheDir, released.getDir());
+        }
+    }
+
+    private File createCache(final String name, final int size, final long lastModified) throws IOException {
+        File cacheDir = temporaryFolder.newFolder(name, "3.11");
+        Files.write(new File(cacheDir, "module.data.json").toPath(), new byte[size]);
+        File root = cacheDir.getParentFile();
+        Assert.assertTrue(root.setLastModified(lastModified));
+        return root;
+    }
+}
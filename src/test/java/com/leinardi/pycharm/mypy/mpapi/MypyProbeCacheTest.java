@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.projectRoots.ProjectJdkTable;
+import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.projectRoots.impl.UnknownSdkType;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.leinardi.pycharm.mypy.MypyConfigService;
+
+public class MypyProbeCacheTest extends BasePlatformTestCase {
+    private MypyConfigService mypyConfigService;
+    private String previousMypyPath;
+    private MypyProbeCache probeCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // an explicit Mypy path: the profile is resolved without looking for Mypy on the system
+        mypyConfigService = MypyConfigService.getInstance(getProject());
+        previousMypyPath = mypyConfigService.getCustomMypyPath();
+        mypyConfigService.setCustomMypyPath(mypyPath("venv"));
+        probeCache = new MypyProbeCache(getProject(), getTestRootDisposable());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            mypyConfigService.setCustomMypyPath(previousMypyPath);
+        } catch (Throwable e) {
+            addSuppressedException(e);
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testProfileIsResolvedOnce() {
+        MypyExecutionProfile profile = probeCache.getExecutionProfile();
+
+        assertEquals(mypyPath("venv"), profile.getMypyPath());
+        assertSame(profile, probeCache.getExecutionProfile());
+    }
+
+    public void testChangingTheSettingsResolvesTheProfileAgain() {
+        probeCache.getExecutionProfile();
+
+        mypyConfigService.setCustomMypyPath(mypyPath("other-venv"));
+
+        assertEquals(mypyPath("other-venv"), probeCache.getExecutionProfile().getMypyPath());
+    }
+
+    public void testAddingAnSdkResolvesTheProfileAgain() {
+        MypyExecutionProfile profile = probeCache.getExecutionProfile();
+
+        Sdk sdk = createSdk();
+        WriteAction.runAndWait(() -> ProjectJdkTable.getInstance().addJdk(sdk, getTestRootDisposable()));
+
+        assertNotSame(profile, probeCache.getExecutionProfile());
+    }
+
+    public void testRemovingAnSdkResolvesTheProfileAgain() {
+        Sdk sdk = createSdk();
+        WriteAction.runAndWait(() -> ProjectJdkTable.getInstance().addJdk(sdk));
+        MypyExecutionProfile profile = probeCache.getExecutionProfile();
+
+        WriteAction.runAndWait(() -> ProjectJdkTable.getInstance().removeJdk(sdk));
+
+        assertNotSame(profile, probeCache.getExecutionProfile());
+    }
+
+    public void testInstallingMypyResolvesTheProfileAgain() {
+        MypyExecutionProfile profile = probeCache.getExecutionProfile();
+
+        myFixture.addFileToProject("mypy/__init__.py", "");
+
+        assertNotSame(profile, probeCache.getExecutionProfile());
+    }
+
+    public void testOtherFilesKeepTheProfile() {
+        MypyExecutionProfile profile = probeCache.getExecutionProfile();
+
+        myFixture.addFileToProject("other.py", "x = 1\n");
+
+        assertSame(profile, probeCache.getExecutionProfile());
+    }
+
+    private static Sdk createSdk() {
+        return ProjectJdkTable.getInstance().createSdk("Mypy Probe Test", UnknownSdkType.getInstance("MypyTest"));
+    }
+
+    private static String mypyPath(final String venv) {
+        return FileUtil.join(FileUtil.getTempDirectory(), venv, "bin", "mypy");
+    }
+}
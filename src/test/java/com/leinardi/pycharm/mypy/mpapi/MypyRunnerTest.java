@@ -20,9 +20,14 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class MypyRunnerTest {
@@ -39,4 +44,102 @@ public class MypyRunnerTest {
         List<Issue> results = MypyRunner.parseMypyOutput(stringToStream(input));
         Assert.assertArrayEquals(results.toArray(), new Issue[]{parsed});
     }
+
+    @Test
+    public void testParseStreamsIssuesInOrder() throws IOException {
+        String input = "a.py:1:1: error: first\n"
+                + "Found 2 errors in 2 files (checked 2 source files)\n"
+                + "b.py:2:3: note: second\n";
+        List<Issue> streamed = new ArrayList<>();
+
+        MypyRunner.parseMypyOutput(stringToStream(input), streamed::add);
+        Assert.assertEquals(Arrays.asList(
+                new Issue("a.py", 1, 0, SeverityLevel.ERROR, "first"),
+                new Issue("b.py", 2, 2, SeverityLevel.NOTE, "second")), streamed);
+    }
+
+    @Test
+    public void testParseWindowsDriveLetterPath() throws IOException {
+        String input = "C:\\project\\testfile.py:3:5: error: Name \"x\" is not defined  [name-defined]\r\n";
+        Issue parsed = new Issue("C:\\project\\testfile.py", 3, 4, SeverityLevel.ERROR,
+                "Name \"x\" is not defined  [name-defined]");
+
+        List<Issue> results = MypyRunner.parseMypyOutput(stringToStream(input));
+        Assert.assertEquals(Collections.singletonList(parsed), results);
+    }
+
+    @Test
+    public void testParseWithoutColumnOrLine() throws IOException {
+        String input = "testfile.py:7: note: See https://mypy.rtfd.io/en/stable/_refs.html#code-misc\n"
+                + "testfile.py: note: In function \"f\":\n";
+
+        List<Issue> results = MypyRunner.parseMypyOutput(stringToStream(input));
+        Assert.assertEquals(Arrays.asList(
+                new Issue("testfile.py", 7, 1, SeverityLevel.NOTE,
+                        "See https://mypy.rtfd.io/en/stable/_refs.html#code-misc"),
+                new Issue("testfile.py", 1, 1, SeverityLevel.NOTE, "In function \"f\":")), results);
+    }
+
+    @Test
+    public void testParseJsonOutput() throws IOException {
+        String input = "{\"file\": \"a.py\", \"line\": 2, \"column\": 4, \"message\": \"Incompatible types\", "
+                + "\"hint\": \"See docs\\nand more\", \"code\": \"assignment\", \"severity\": \"error\"}\n"
+                + "Found 1 error in 1 file (checked 1 source file)\n"
+                + "{\"file\": \"b.py\", \"line\": 5, \"column\": 0, \"message\": \"Revealed type\", "
+                + "\"hint\": null, \"code\": null, \"severity\": \"note\"}\n";
+        List<Issue> streamed = new ArrayList<>();
+
+        MypyRunner.parseMypyJsonOutput(stringToStream(input), streamed::add);
+        Assert.assertEquals(Arrays.asList(
+                new Issue("a.py", 2, 4, SeverityLevel.ERROR, "Incompatible types  [assignment]", "assignment",
+                        "See docs\nand more"),
+                new Issue("a.py", 2, 4, SeverityLevel.NOTE, "See docs"),
+                new Issue("a.py", 2, 4, SeverityLevel.NOTE, "and more"),
+                new Issue("b.py", 5, 0, SeverityLevel.NOTE, "Revealed type")), streamed);
+    }
+
+    @Test
+    public void testParseJsonOutputSkipsMalformedLines() throws IOException {
+        String input = "{\"file\": \"a.py\", \"line\": \n"
+                + "{\"file\": \"a.py\", \"line\": 1, \"column\": 0, \"message\": \"m\", \"severity\": \"error\"}\n";
+        List<Issue> streamed = new ArrayList<>();
+
+        MypyRunner.parseMypyJsonOutput(stringToStream(input), streamed::add);
+        Assert.assertEquals(Collections.singletonList(new Issue("a.py", 1, 0, SeverityLevel.ERROR, "m")), streamed);
+    }
+
+    @Test
+    public void testArgumentFileHasOneArgumentPerLine() throws IOException {
+        List<String> files = Arrays.asList("/project/a.py", "/project/with space/b.py", "C:\\project\\c.py",
+                "/project/caf\u00e9/\u00fc.py");
+        String lineSeparator = System.lineSeparator();
+        byte[] expected = (String.join(lineSeparator, files) + lineSeparator).getBytes(StandardCharsets.UTF_8);
+
+        File argumentFile = MypyRunner.writeArgumentFile(files);
+        try {
+            // UTF-8 whatever the default charset of the JVM: the e acute is written as 0xC3 0xA9
+            Assert.assertArrayEquals(expected, Files.readAllBytes(argumentFile.toPath()));
+        } finally {
+            Assert.assertTrue(argumentFile.delete());
+        }
+    }
+
+    @Test
+    public void testDaemonArgumentsDontFollowImportsSilently() {
+        List<String> arguments = Arrays.asList("--show-column-numbers", "--follow-imports", "silent",
+                "--strict", "--follow-imports=silent");
+
+        List<String> daemonArguments = MypyRunner.toDaemonArguments(arguments);
+
+        Assert.assertEquals(Arrays.asList("--show-column-numbers", "--follow-imports", MypyRunner.DAEMON_FOLLOW_IMPORTS,
+                "--strict", "--follow-imports=" + MypyRunner.DAEMON_FOLLOW_IMPORTS), daemonArguments);
+    }
+
+    @Test
+    public void testParseMypyVersion() {
+        Assert.assertTrue(MypyVersion.parse("mypy 1.11.2 (compiled: yes)").isAtLeast(1, 11));
+        Assert.assertFalse(MypyVersion.parse("mypy 1.10.1 (compiled: yes)").isAtLeast(1, 11));
+        Assert.assertTrue(MypyVersion.parse("mypy 2.0").isAtLeast(1, 11));
+        Assert.assertEquals(MypyVersion.UNKNOWN, MypyVersion.parse("not a version"));
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023 Roberto Leinardi.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.leinardi.pycharm.mypy.mpapi;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ScanShardsTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testPackagesAreKeptTogether() {
+        List<String> files = Arrays.asList(
+                "/p/a/one.py", "/p/a/two.py",
+                "/p/b/one.py", "/p/b/two.py",
+                "/p/c/one.py", "/p/c/two.py");
+
+        List<Set<String>> shards = ScanShards.partition(files, 3);
+
+        Assert.assertEquals(3, shards.size());
+        for (Set<String> shard : shards) {
+            Assert.assertEquals(1, shard.stream().map(file -> file.substring(0, 4)).distinct().count());
+        }
+    }
+
+    @Test
+    public void testLargePackageIsSplitAcrossShards() {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            files.add("C:\\project\\flat\\module" + i + ".py");
+        }
+
+        List<Set<String>> shards = ScanShards.partition(files, 4);
+
+        Assert.assertEquals(4, shards.size());
+        Set<String> allFiles = new HashSet<>();
+        for (Set<String> shard : shards) {
+            Assert.assertEquals(25, shard.size());
+            allFiles.addAll(shard);
+        }
+        Assert.assertEquals(new HashSet<>(files), allFiles);
+    }
+
+    @Test
+    public void testSmallScansAreNotSharded() {
+        Assert.assertEquals(1, ScanShards.shardCount(8, 1));
+        Assert.assertEquals(1, ScanShards.shardCount(8, ScanShards.MIN_FILES_PER_SHARD * 2 - 1));
+        Assert.assertEquals(2, ScanShards.shardCount(2, ScanShards.MIN_FILES_PER_SHARD * 100));
+    }
+
+    @Test
+    public void testShardKeyDependsOnPackagesOnly() {
+        List<String> shard = Arrays.asList("/p/a/one.py", "/p/a/two.py", "/p/b/one.py");
+        List<String> samePackages = Arrays.asList("/p/b/two.py", "/p/a/three.py");
+
+        Assert.assertEquals(ScanShards.shardKey(shard), ScanShards.shardKey(samePackages));
+        Assert.assertNotEquals(ScanShards.shardKey(shard), ScanShards.shardKey(Arrays.asList("/p/c/one.py")));
+    }
+
+    @Test
+    public void testEntryPointsAreGroupedByModuleName() throws IOException {
+        // "first" and "second" are source roots: both contain a top-level "app" package and a "setup.py"
+        File firstApp = temporaryFolder.newFolder("first", "app");
+        File secondApp = temporaryFolder.newFolder("second", "app");
+        File nested = temporaryFolder.newFolder("first", "app", "nested");
+        List<String> files = Arrays.asList(
+                createFile(firstApp, "__init__.py"),
+                createFile(secondApp, "__init__.py"),
+                createFile(nested, "__init__.py"),
+                createFile(firstApp, "__main__.py"),
+                createFile(firstApp.getParentFile(), "setup.py"),
+                createFile(secondApp.getParentFile(), "setup.py"));
+
+        Assert.assertEquals("app.nested", ScanShards.moduleName(files.get(2)));
+        Assert.assertEquals("app.__main__", ScanShards.moduleName(files.get(3)));
+
+        List<Set<String>> groups = ScanShards.groupByModuleName(files);
+
+        Assert.assertEquals(2, groups.size());
+        Assert.assertEquals(4, groups.get(0).size());
+        Assert.assertEquals(2, groups.get(1).size());
+    }
+
+    private static String createFile(final File directory, final String name) throws IOException {
+        File file = new File(directory, name);
+        Assert.assertTrue(file.createNewFile());
+        return file.getPath();
+    }
+}